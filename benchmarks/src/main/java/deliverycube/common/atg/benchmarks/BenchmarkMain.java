@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks at several thread counts, with the GC profiler, so that
+ * each reports both ns/op and the allocation rate per operation
+ * (<code>gc.alloc.rate.norm</code>, in bytes/op).
+ * 
+ * Usage is
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar deliverycube.common.atg.benchmarks.BenchmarkMain [threadCounts] [include]
+ * </pre>
+ * 
+ * where <code>threadCounts</code> is a comma-separated list, by default
+ * <code>1,4,16</code>, and <code>include</code> is a regular expression
+ * selecting the benchmarks, by default all of them. The results for each
+ * thread count are also written to <code>target/jmh-&lt;n&gt;-threads.csv</code>.
+ * 
+ * @author Vihung Marathe
+ */
+public final class BenchmarkMain {
+    private static final String DEFAULT_THREAD_COUNTS = "1,4,16";
+
+    private static final String DEFAULT_INCLUDE = BenchmarkMain.class.getPackage().getName() + "\\..*Benchmark";
+
+    private BenchmarkMain() {
+        super();
+    }
+
+    public static void main(final String[] pArgs) throws RunnerException {
+        final String threadCounts = pArgs.length > 0 ? pArgs[0] : DEFAULT_THREAD_COUNTS;
+        final String include = pArgs.length > 1 ? pArgs[1] : DEFAULT_INCLUDE;
+
+        for (String threadCount : threadCounts.split(",")) {
+            final int threads = Integer.parseInt(threadCount.trim());
+            final ChainedOptionsBuilder options = new OptionsBuilder().include(include).threads(threads).addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.CSV).result("target/jmh-" + threads + "-threads.csv");
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import deliverycube.common.atg.benchmarks.support.StandIns;
+import deliverycube.common.atg.componentresolver.UnknownComponentException;
+import deliverycube.common.atg.componentresolver.jndi.JndiComponentResolver;
+
+/**
+ * Cost of resolving the Transaction Manager with the
+ * <code>JndiComponentResolver</code>, as the <code>ATGTransactionFilter</code>
+ * does for every transactional request, against a bare JNDI lookup.
+ * 
+ * @author Vihung Marathe
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class JndiComponentResolverBenchmark {
+    private JndiComponentResolver mResolver;
+
+    @Setup
+    public void setUp() {
+        StandIns.install();
+        mResolver = new JndiComponentResolver();
+        mResolver.setComponentName("/atg/dynamo/transaction/TransactionManager");
+    }
+
+    /**
+     * A new initial context and lookup - the baseline
+     */
+    @Benchmark
+    public Object lookup() throws NamingException {
+        return new InitialContext().lookup(StandIns.TRANSACTION_MANAGER_JNDI_NAME);
+    }
+
+    @Benchmark
+    public Object resolveComponent() throws UnknownComponentException {
+        return mResolver.resolveComponent();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import deliverycube.common.atg.benchmarks.support.InMemoryHttp;
+import deliverycube.common.atg.transaction.filter.StatusResponseWrapper;
+
+/**
+ * Cost of wrapping a response to capture its status, as the
+ * <code>ATGTransactionFilter</code> does for every transactional request.
+ * 
+ * @author Vihung Marathe
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class StatusResponseWrapperBenchmark {
+    private HttpServletResponse mResponse;
+
+    @Setup
+    public void setUp() {
+        mResponse = InMemoryHttp.response();
+    }
+
+    /**
+     * The status set on the response directly - the baseline
+     */
+    @Benchmark
+    public void unwrapped() {
+        mResponse.setStatus(HttpServletResponse.SC_CREATED);
+    }
+
+    @Benchmark
+    public int wrapped() {
+        final StatusResponseWrapper response = new StatusResponseWrapper(mResponse);
+        response.setStatus(HttpServletResponse.SC_CREATED);
+        return response.getStatus();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import deliverycube.common.atg.benchmarks.support.InMemoryFilterChain;
+import deliverycube.common.atg.benchmarks.support.InMemoryFilterConfig;
+import deliverycube.common.atg.benchmarks.support.InMemoryHttp;
+import deliverycube.common.atg.benchmarks.support.StandIns;
+import deliverycube.common.atg.transaction.filter.ATGTransactionFilter;
+
+/**
+ * Per-request cost of the <code>ATGTransactionFilter</code>, against an
+ * unfiltered baseline, with and without lazy transactions.
+ * 
+ * @author Vihung Marathe
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TransactionFilterBenchmark {
+    /** The value of the filter's <code>lazy</code> init parameter */
+    @Param({ "false", "true" })
+    public String lazy;
+
+    private ATGTransactionFilter mFilter;
+
+    private HttpServletRequest mGet;
+
+    private HttpServletRequest mPost;
+
+    private HttpServletResponse mResponse;
+
+    private FilterChain mSucceeding;
+
+    private FilterChain mFailing;
+
+    @Setup
+    public void setUp() throws ServletException {
+        StandIns.install();
+
+        mFilter = new ATGTransactionFilter();
+        mFilter.init(new InMemoryFilterConfig().initParameter("propagationLevel", "REQUIRED").initParameter("lazy", lazy));
+
+        mGet = InMemoryHttp.request("GET", "/store", "/store/api/orders/1");
+        mPost = InMemoryHttp.request("POST", "/store", "/store/api/orders");
+        mResponse = InMemoryHttp.response();
+        mSucceeding = new InMemoryFilterChain(HttpServletResponse.SC_OK);
+        mFailing = new InMemoryFilterChain(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFilter.destroy();
+    }
+
+    /**
+     * The request sent straight down the chain - the baseline
+     */
+    @Benchmark
+    public void unfiltered() throws IOException, ServletException {
+        mSucceeding.doFilter(mPost, mResponse);
+    }
+
+    /**
+     * A request that does not need a transaction
+     */
+    @Benchmark
+    public void get() throws IOException, ServletException {
+        mFilter.doFilter(mGet, mResponse, mSucceeding);
+    }
+
+    /**
+     * A request whose transaction commits - or, if lazy, is skipped
+     */
+    @Benchmark
+    public void postCommitted() throws IOException, ServletException {
+        mFilter.doFilter(mPost, mResponse, mSucceeding);
+    }
+
+    /**
+     * A request whose transaction rolls back - or, if lazy, is skipped
+     */
+    @Benchmark
+    public void postRolledBack() throws IOException, ServletException {
+        mFilter.doFilter(mPost, mResponse, mFailing);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks;
+
+import javax.transaction.Transaction;
+
+import deliverycube.common.atg.benchmarks.support.StandIns;
+import deliverycube.common.atg.transaction.annotation.ATGTransaction;
+import deliverycube.common.atg.transaction.annotation.PropagationLevel;
+
+/**
+ * Methods advised by the <code>ATGTransactionAspect</code>, for benchmarks
+ * and stress tests. They do next to no work, so that what is measured is the
+ * cost of the advice.
+ * 
+ * @author Vihung Marathe
+ */
+public class TransactionalService {
+
+    /**
+     * Not advised - the baseline
+     */
+    public int unadvised(final int pValue) {
+        return pValue + 1;
+    }
+
+    @ATGTransaction(propagationLevel = PropagationLevel.REQUIRED)
+    public int required(final int pValue) {
+        return pValue + 1;
+    }
+
+    @ATGTransaction(propagationLevel = PropagationLevel.REQUIRES_NEW)
+    public int requiresNew(final int pValue) {
+        return pValue + 1;
+    }
+
+    @ATGTransaction(propagationLevel = PropagationLevel.REQUIRED, timeoutSeconds = 30)
+    public int requiredWithTimeout(final int pValue) {
+        return pValue + 1;
+    }
+
+    @ATGTransaction(propagationLevel = PropagationLevel.REQUIRED, readOnly = true)
+    public int readOnly(final int pValue) {
+        return pValue + 1;
+    }
+
+    /**
+     * Begins a transaction, which a nested advised call joins
+     */
+    @ATGTransaction(propagationLevel = PropagationLevel.REQUIRED)
+    public int nested(final int pValue) {
+        return required(pValue) + 1;
+    }
+
+    /**
+     * @return the transaction the method runs in
+     */
+    @ATGTransaction(propagationLevel = PropagationLevel.REQUIRED)
+    public Transaction currentTransaction() {
+        return StandIns.install().getTransaction();
+    }
+}
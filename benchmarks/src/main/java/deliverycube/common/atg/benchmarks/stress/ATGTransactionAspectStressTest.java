@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.stress;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.ZZZ_Result;
+
+import deliverycube.common.atg.benchmarks.TransactionalService;
+import deliverycube.common.atg.benchmarks.support.StandIns;
+import deliverycube.common.atg.transaction.annotation.ATGTransactionAspect;
+
+/**
+ * Two threads make the first calls through a new aspect at once - one to a
+ * read-only method, one to a writable one - racing to fill its cache of
+ * method attributes and to look up the Transaction Manager. Each must run in
+ * a transaction of its own, with its own method's attributes - the read-only
+ * one rolled back, the writable one committed.
+ * 
+ * @author Vihung Marathe
+ */
+@JCStressTest
+@Description("First concurrent calls through an ATGTransactionAspect each get their own method's attributes")
+@Outcome(id = "true, true, true", expect = Expect.ACCEPTABLE, desc = "Each call ran in its own transaction, with its own method's attributes")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Calls shared a transaction, ran without one, or got the other method's attributes")
+@State
+public class ATGTransactionAspectStressTest {
+    private static final Method READ_ONLY_METHOD = getMethod("readOnly");
+
+    private static final Method REQUIRED_METHOD = getMethod("required");
+
+    /** A new aspect for each race, so that both calls find its cache and Transaction Manager unset */
+    private final ATGTransactionAspect mAspect = new ATGTransactionAspect();
+
+    private Transaction mReadOnlyTransaction;
+
+    private Transaction mRequiredTransaction;
+
+    public ATGTransactionAspectStressTest() {
+        StandIns.install();
+    }
+
+    @Actor
+    public void actor1() {
+        mReadOnlyTransaction = advise(READ_ONLY_METHOD);
+    }
+
+    @Actor
+    public void actor2() {
+        mRequiredTransaction = advise(REQUIRED_METHOD);
+    }
+
+    @Arbiter
+    public void arbiter(final ZZZ_Result pResult) {
+        pResult.r1 = mReadOnlyTransaction != null && mRequiredTransaction != null && mReadOnlyTransaction != mRequiredTransaction;
+        pResult.r2 = StressTests.hasStatus(mReadOnlyTransaction, Status.STATUS_ROLLEDBACK);
+        pResult.r3 = StressTests.hasStatus(mRequiredTransaction, Status.STATUS_COMMITTED);
+    }
+
+    /**
+     * Call the aspect's advice as the woven method would
+     * 
+     * @return the transaction the method ran in
+     */
+    private Transaction advise(final Method pMethod) {
+        try {
+            return (Transaction) mAspect.doStartTransaction(joinPoint(pMethod));
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A join point for a method, whose body returns the current transaction
+     */
+    private static ProceedingJoinPoint joinPoint(final Method pMethod) {
+        final MethodSignature signature = proxy(MethodSignature.class, new InvocationHandler() {
+            public Object invoke(final Object pProxy, final Method pInvoked, final Object[] pArguments) {
+                if ("getMethod".equals(pInvoked.getName())) return pMethod;
+                throw new UnsupportedOperationException(pInvoked.getName());
+            }
+        });
+        return proxy(ProceedingJoinPoint.class, new InvocationHandler() {
+            public Object invoke(final Object pProxy, final Method pInvoked, final Object[] pArguments) {
+                if ("getSignature".equals(pInvoked.getName())) return signature;
+                if ("proceed".equals(pInvoked.getName())) return StandIns.install().getTransaction();
+                throw new UnsupportedOperationException(pInvoked.getName());
+            }
+        });
+    }
+
+    private static <T> T proxy(final Class<T> pInterface, final InvocationHandler pHandler) {
+        return pInterface.cast(Proxy.newProxyInstance(pInterface.getClassLoader(), new Class<?>[] { pInterface }, pHandler));
+    }
+
+    private static Method getMethod(final String pName) {
+        try {
+            return TransactionalService.class.getMethod(pName, int.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.stress;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.ZZ_Result;
+
+import deliverycube.common.atg.benchmarks.support.InMemoryFilterChain;
+import deliverycube.common.atg.benchmarks.support.InMemoryFilterConfig;
+import deliverycube.common.atg.benchmarks.support.InMemoryHttp;
+import deliverycube.common.atg.benchmarks.support.StandIns;
+import deliverycube.common.atg.transaction.filter.ATGTransactionFilter;
+
+/**
+ * Two threads send requests through the same filter at once, one succeeding
+ * and one failing. The outcome of one must not leak into the other.
+ * 
+ * @author Vihung Marathe
+ */
+@JCStressTest
+@Description("Concurrent requests through one ATGTransactionFilter get their own transactions and outcomes")
+@Outcome(id = "true, true", expect = Expect.ACCEPTABLE, desc = "The succeeding request committed and the failing one rolled back, in separate transactions")
+@Outcome(expect = Expect.FORBIDDEN, desc = "The requests shared a transaction, or one got the other's outcome")
+@State
+public class ATGTransactionFilterStressTest {
+    private final ATGTransactionFilter mFilter = new ATGTransactionFilter();
+
+    private final HttpServletRequest mRequest = InMemoryHttp.request("POST", "", "/api/orders");
+
+    private final CapturingFilterChain mSucceeding = new CapturingFilterChain(HttpServletResponse.SC_OK);
+
+    private final CapturingFilterChain mFailing = new CapturingFilterChain(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+
+    public ATGTransactionFilterStressTest() {
+        StandIns.install();
+        try {
+            mFilter.init(new InMemoryFilterConfig().initParameter("propagationLevel", "REQUIRED"));
+        } catch (ServletException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Actor
+    public void succeeding() {
+        StressTests.doFilter(mFilter, mRequest, mSucceeding);
+    }
+
+    @Actor
+    public void failing() {
+        StressTests.doFilter(mFilter, mRequest, mFailing);
+    }
+
+    @Arbiter
+    public void arbiter(final ZZ_Result pResult) {
+        final Transaction committed = mSucceeding.mTransaction;
+        final Transaction rolledBack = mFailing.mTransaction;
+        pResult.r1 = committed != null && committed != rolledBack && StressTests.hasStatus(committed, Status.STATUS_COMMITTED);
+        pResult.r2 = rolledBack != null && StressTests.hasStatus(rolledBack, Status.STATUS_ROLLEDBACK);
+    }
+
+    /**
+     * Records the transaction the request ran in
+     */
+    private static final class CapturingFilterChain extends InMemoryFilterChain {
+        Transaction mTransaction;
+
+        CapturingFilterChain(final int pStatus) {
+            super(pStatus);
+        }
+
+        @Override
+        protected void handle() throws IOException, ServletException {
+            mTransaction = StandIns.install().getTransaction();
+        }
+    }
+}
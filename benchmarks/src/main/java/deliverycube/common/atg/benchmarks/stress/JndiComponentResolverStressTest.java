@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.stress;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.ZZ_Result;
+
+import deliverycube.common.atg.benchmarks.support.InMemoryTransactionManager;
+import deliverycube.common.atg.benchmarks.support.StandIns;
+import deliverycube.common.atg.componentresolver.UnknownComponentException;
+import deliverycube.common.atg.componentresolver.jndi.JndiComponentResolver;
+
+/**
+ * Two threads resolve a component through the same resolver at once. Both
+ * must get the bound component.
+ * 
+ * @author Vihung Marathe
+ */
+@JCStressTest
+@Description("Concurrent resolution through one JndiComponentResolver")
+@Outcome(id = "true, true", expect = Expect.ACCEPTABLE, desc = "Both threads resolved the bound component")
+@Outcome(expect = Expect.FORBIDDEN, desc = "A thread failed to resolve the component, or got another object")
+@State
+public class JndiComponentResolverStressTest {
+    private final InMemoryTransactionManager mTransactionManager = StandIns.install();
+
+    private final JndiComponentResolver mResolver = new JndiComponentResolver();
+
+    public JndiComponentResolverStressTest() {
+        mResolver.setComponentName("/atg/dynamo/transaction/TransactionManager");
+    }
+
+    @Actor
+    public void actor1(final ZZ_Result pResult) {
+        pResult.r1 = resolvesTransactionManager();
+    }
+
+    @Actor
+    public void actor2(final ZZ_Result pResult) {
+        pResult.r2 = resolvesTransactionManager();
+    }
+
+    private boolean resolvesTransactionManager() {
+        try {
+            return mResolver.resolveComponent() == mTransactionManager;
+        } catch (UnknownComponentException e) {
+            return false;
+        }
+    }
+}
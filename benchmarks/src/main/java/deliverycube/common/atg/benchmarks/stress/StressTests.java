@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.stress;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import deliverycube.common.atg.benchmarks.support.InMemoryHttp;
+
+/**
+ * Helpers shared by the stress tests. Actors may not throw checked
+ * exceptions, so these turn them into unchecked ones, which jcstress reports
+ * as errors.
+ * 
+ * @author Vihung Marathe
+ */
+final class StressTests {
+
+    private StressTests() {
+        super();
+    }
+
+    static boolean hasStatus(final Transaction pTransaction, final int pStatus) {
+        if (pTransaction == null) return false;
+        try {
+            return pTransaction.getStatus() == pStatus;
+        } catch (SystemException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void doFilter(final Filter pFilter, final HttpServletRequest pRequest, final FilterChain pFilterChain) {
+        try {
+            pFilter.doFilter(pRequest, InMemoryHttp.response(), pFilterChain);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (ServletException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.support;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * In-memory stand-in for the rest of a filter chain, which does no work but
+ * set the response status. Subclass it and override {@link #handle()} to do
+ * some.
+ * 
+ * @author Vihung Marathe
+ */
+public class InMemoryFilterChain implements FilterChain {
+    private final int mStatus;
+
+    /**
+     * Constructor.
+     * 
+     * @param pStatus
+     *            the response status to set
+     */
+    public InMemoryFilterChain(final int pStatus) {
+        super();
+        mStatus = pStatus;
+    }
+
+    /**
+     * @see javax.servlet.FilterChain#doFilter(javax.servlet.ServletRequest,
+     *      javax.servlet.ServletResponse)
+     */
+    public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+        handle();
+        ((HttpServletResponse) pResponse).setStatus(mStatus);
+    }
+
+    /**
+     * The work of the request. Does nothing by default.
+     */
+    protected void handle() throws IOException, ServletException {
+        // No work
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.support;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * In-memory stand-in for a filter's configuration, with no servlet context
+ * 
+ * @author Vihung Marathe
+ */
+public final class InMemoryFilterConfig implements FilterConfig {
+    private final Map<String, String> mInitParameters = new HashMap<String, String>();
+
+    /**
+     * Set an init parameter
+     * 
+     * @return this, for chaining
+     */
+    public InMemoryFilterConfig initParameter(final String pName, final String pValue) {
+        mInitParameters.put(pName, pValue);
+        return this;
+    }
+
+    public String getFilterName() {
+        return "InMemoryFilter";
+    }
+
+    public ServletContext getServletContext() {
+        return null;
+    }
+
+    public String getInitParameter(final String pName) {
+        return mInitParameters.get(pName);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public Enumeration getInitParameterNames() {
+        return Collections.enumeration(mInitParameters.keySet());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.support;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * In-memory stand-ins for HTTP servlet requests and responses. They answer
+ * the request method, URI and context path, and otherwise return
+ * <code>null</code>, zero or <code>false</code>, so they do not depend on the
+ * version of the servlet API.
+ * 
+ * Each call to a stand-in goes through a dynamic proxy, which costs the same
+ * whether or not a request is filtered - compare filtered benchmarks with an
+ * unfiltered baseline, rather than reading them on their own.
+ * 
+ * @author Vihung Marathe
+ */
+public final class InMemoryHttp {
+
+    private InMemoryHttp() {
+        super();
+    }
+
+    /**
+     * Create a request
+     * 
+     * @param pHttpMethod
+     *            the HTTP method, such as <code>POST</code>
+     * @param pContextPath
+     *            the context path
+     * @param pRequestURI
+     *            the request URI, including the context path
+     * @return the request
+     */
+    public static HttpServletRequest request(final String pHttpMethod, final String pContextPath, final String pRequestURI) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+            public Object invoke(final Object pProxy, final Method pMethod, final Object[] pArguments) {
+                final String method = pMethod.getName();
+                if ("getMethod".equals(method)) return pHttpMethod;
+                if ("getContextPath".equals(method)) return pContextPath;
+                if ("getRequestURI".equals(method)) return pRequestURI;
+                return defaultValue(pProxy, pMethod, pArguments);
+            }
+        });
+    }
+
+    /**
+     * Create a response that discards everything
+     * 
+     * @return the response
+     */
+    public static HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+            public Object invoke(final Object pProxy, final Method pMethod, final Object[] pArguments) {
+                return defaultValue(pProxy, pMethod, pArguments);
+            }
+        });
+    }
+
+    private static Object defaultValue(final Object pProxy, final Method pMethod, final Object[] pArguments) {
+        final String method = pMethod.getName();
+        if ("hashCode".equals(method)) return Integer.valueOf(System.identityHashCode(pProxy));
+        if ("equals".equals(method)) return Boolean.valueOf(pProxy == pArguments[0]);
+        if ("toString".equals(method)) return pProxy.getClass().getInterfaces()[0].getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(pProxy));
+
+        final Class<?> type = pMethod.getReturnType();
+        if (type == boolean.class) return Boolean.FALSE;
+        if (type == int.class) return Integer.valueOf(0);
+        if (type == long.class) return Long.valueOf(0);
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.support;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * In-memory stand-in for the Dynamo JNDI provider, so that
+ * <code>dynamo:</code> names resolve without Nucleus. Components are bound
+ * with {@link #bind(String, Object)}, and the factory is selected by setting
+ * the <code>java.naming.factory.initial</code> system property, as
+ * {@link #install()} does.
+ * 
+ * The contexts it creates support <code>lookup</code>, and little else.
+ * 
+ * @author Vihung Marathe
+ */
+public final class InMemoryInitialContextFactory implements InitialContextFactory {
+    /** The map of (JNDI name --&gt; component) shared by all contexts */
+    private static final ConcurrentMap<String, Object> BINDINGS = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Select this factory for all new initial contexts
+     */
+    public static void install() {
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, InMemoryInitialContextFactory.class.getName());
+    }
+
+    /**
+     * Bind a component to a JNDI name, such as
+     * <code>dynamo:/atg/dynamo/transaction/TransactionManager</code>
+     * 
+     * @param pName
+     *            the JNDI name
+     * @param pComponent
+     *            the component
+     */
+    public static void bind(final String pName, final Object pComponent) {
+        BINDINGS.put(pName, pComponent);
+    }
+
+    /**
+     * @see javax.naming.spi.InitialContextFactory#getInitialContext(java.util.Hashtable)
+     */
+    public Context getInitialContext(final Hashtable<?, ?> pEnvironment) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[] { Context.class }, new InMemoryContext(pEnvironment));
+    }
+
+    /**
+     * The behaviour of the contexts
+     */
+    private static final class InMemoryContext implements InvocationHandler {
+        private final Hashtable<?, ?> mEnvironment;
+
+        InMemoryContext(final Hashtable<?, ?> pEnvironment) {
+            mEnvironment = pEnvironment;
+        }
+
+        public Object invoke(final Object pProxy, final Method pMethod, final Object[] pArguments) throws Throwable {
+            final String method = pMethod.getName();
+            if ("lookup".equals(method)) {
+                final String name = pArguments[0] instanceof Name ? pArguments[0].toString() : (String) pArguments[0];
+                final Object component = BINDINGS.get(name);
+                if (component == null) throw new NameNotFoundException(name);
+                return component;
+            } else if ("close".equals(method)) {
+                return null;
+            } else if ("getEnvironment".equals(method)) {
+                return mEnvironment;
+            } else if ("hashCode".equals(method)) {
+                return Integer.valueOf(System.identityHashCode(pProxy));
+            } else if ("equals".equals(method)) {
+                return Boolean.valueOf(pProxy == pArguments[0]);
+            } else if ("toString".equals(method)) {
+                return "InMemoryContext" + BINDINGS.keySet();
+            }
+            throw new OperationNotSupportedException(method);
+        }
+    }
+}
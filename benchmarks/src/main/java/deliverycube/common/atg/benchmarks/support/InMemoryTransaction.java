@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAResource;
+
+/**
+ * In-memory stand-in for a JTA {@link Transaction}. Tracks its status and runs
+ * its synchronizations, but enlists no resources. Confined to the thread that
+ * began it, as a JTA transaction is.
+ * 
+ * @author Vihung Marathe
+ */
+public final class InMemoryTransaction implements Transaction {
+    private final InMemoryTransactionManager mTransactionManager;
+
+    private int mStatus = Status.STATUS_ACTIVE;
+
+    private List<Synchronization> mSynchronizations;
+
+    InMemoryTransaction(final InMemoryTransactionManager pTransactionManager) {
+        mTransactionManager = pTransactionManager;
+    }
+
+    public void commit() throws RollbackException, SystemException {
+        if (mStatus == Status.STATUS_MARKED_ROLLBACK) {
+            rollback();
+            throw new RollbackException("Transaction was marked for rollback");
+        }
+        checkActive();
+
+        if (mSynchronizations != null) {
+            for (Synchronization synchronization : mSynchronizations) {
+                synchronization.beforeCompletion();
+            }
+        }
+        mStatus = Status.STATUS_COMMITTED;
+        mTransactionManager.completed(this);
+        afterCompletion();
+    }
+
+    public void rollback() throws SystemException {
+        if (mStatus != Status.STATUS_ACTIVE && mStatus != Status.STATUS_MARKED_ROLLBACK) throw new IllegalStateException("Transaction is not active, status=" + mStatus);
+        mStatus = Status.STATUS_ROLLEDBACK;
+        mTransactionManager.completed(this);
+        afterCompletion();
+    }
+
+    private void afterCompletion() {
+        if (mSynchronizations == null) return;
+        for (Synchronization synchronization : mSynchronizations) {
+            synchronization.afterCompletion(mStatus);
+        }
+    }
+
+    public void setRollbackOnly() {
+        checkActive();
+        mStatus = Status.STATUS_MARKED_ROLLBACK;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public void registerSynchronization(final Synchronization pSynchronization) throws RollbackException {
+        if (mStatus == Status.STATUS_MARKED_ROLLBACK) throw new RollbackException("Transaction is marked for rollback");
+        checkActive();
+        if (mSynchronizations == null) mSynchronizations = new ArrayList<Synchronization>(2);
+        mSynchronizations.add(pSynchronization);
+    }
+
+    public boolean enlistResource(final XAResource pResource) {
+        checkActive();
+        return true;
+    }
+
+    public boolean delistResource(final XAResource pResource, final int pFlag) {
+        return true;
+    }
+
+    private void checkActive() {
+        if (mStatus != Status.STATUS_ACTIVE) throw new IllegalStateException("Transaction is not active, status=" + mStatus);
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryTransaction@" + Integer.toHexString(System.identityHashCode(this)) + "[status=" + mStatus + "]";
+    }
+}
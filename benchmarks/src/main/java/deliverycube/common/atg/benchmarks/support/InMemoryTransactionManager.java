@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.support;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * In-memory stand-in for the ATG Transaction Manager. Associates
+ * {@link InMemoryTransaction}s with threads, so that benchmarks and stress
+ * tests can run without an application server. Keeps no shared state, so that
+ * it adds no contention of its own to multi-threaded benchmarks. Timeouts are
+ * accepted but not enforced.
+ * 
+ * @author Vihung Marathe
+ */
+public final class InMemoryTransactionManager implements TransactionManager {
+    /** The transaction associated with each thread */
+    private final ThreadLocal<InMemoryTransaction> mCurrent = new ThreadLocal<InMemoryTransaction>();
+
+
+    public void begin() throws NotSupportedException {
+        if (mCurrent.get() != null) throw new NotSupportedException("Nested transactions are not supported");
+        mCurrent.set(new InMemoryTransaction(this));
+    }
+
+    public void commit() throws RollbackException, SystemException {
+        getRequiredTransaction().commit();
+    }
+
+    public void rollback() throws SystemException {
+        getRequiredTransaction().rollback();
+    }
+
+    public void setRollbackOnly() {
+        getRequiredTransaction().setRollbackOnly();
+    }
+
+    public int getStatus() {
+        final InMemoryTransaction transaction = mCurrent.get();
+        return transaction == null ? Status.STATUS_NO_TRANSACTION : transaction.getStatus();
+    }
+
+    public Transaction getTransaction() {
+        return mCurrent.get();
+    }
+
+    public Transaction suspend() {
+        final InMemoryTransaction transaction = mCurrent.get();
+        mCurrent.remove();
+        return transaction;
+    }
+
+    public void resume(final Transaction pTransaction) throws InvalidTransactionException {
+        if (mCurrent.get() != null) throw new IllegalStateException("Thread already has a transaction");
+        if (pTransaction == null) return;
+        if (!(pTransaction instanceof InMemoryTransaction)) throw new InvalidTransactionException("Not an InMemoryTransaction: " + pTransaction);
+        mCurrent.set((InMemoryTransaction) pTransaction);
+    }
+
+    public void setTransactionTimeout(final int pSeconds) {
+        // Not enforced
+    }
+
+    /**
+     * Dissociate a completed transaction from the current thread
+     */
+    void completed(final InMemoryTransaction pTransaction) {
+        if (mCurrent.get() == pTransaction) mCurrent.remove();
+    }
+
+    private InMemoryTransaction getRequiredTransaction() {
+        final InMemoryTransaction transaction = mCurrent.get();
+        if (transaction == null) throw new IllegalStateException("No transaction");
+        return transaction;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.benchmarks.support;
+
+/**
+ * Installs the in-memory stand-ins for the parts of ATG that the transaction
+ * and component resolver classes use.
+ * 
+ * @author Vihung Marathe
+ */
+public final class StandIns {
+    /** The JNDI name the transaction classes resolve the Transaction Manager by */
+    public static final String TRANSACTION_MANAGER_JNDI_NAME = "dynamo:/atg/dynamo/transaction/TransactionManager";
+
+    /** The single Transaction Manager stand-in */
+    private static final InMemoryTransactionManager TRANSACTION_MANAGER = new InMemoryTransactionManager();
+
+    static {
+        InMemoryInitialContextFactory.install();
+        InMemoryInitialContextFactory.bind(TRANSACTION_MANAGER_JNDI_NAME, TRANSACTION_MANAGER);
+    }
+
+    private StandIns() {
+        super();
+    }
+
+    /**
+     * Install the stand-ins, if they are not already. Safe to call from any
+     * thread, any number of times.
+     * 
+     * @return the Transaction Manager stand-in
+     */
+    public static InMemoryTransactionManager install() {
+        return TRANSACTION_MANAGER;
+    }
+}
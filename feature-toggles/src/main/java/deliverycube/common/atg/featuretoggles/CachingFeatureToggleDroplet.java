@@ -0,0 +1,404 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import atg.nucleus.ServiceException;
+import atg.servlet.DynamoHttpServletRequest;
+import atg.servlet.DynamoHttpServletResponse;
+
+/**
+ * <p>
+ * Caching Feature Toggle Droplet. As the {@link FeatureToggleDroplet}, but
+ * caches the rendered output of the <code>on</code> and <code>off</code>
+ * <code>oparam</code>s, so that an expensive fragment is only rendered again
+ * when the feature toggle changes.
+ * </p>
+ * 
+ * <p>
+ * A fragment is cached by the feature, the version of the feature in the
+ * current {@link FeatureToggleSnapshot}, and the values of the droplet
+ * parameters named in <code>cacheKeyParameters</code> - so it must depend on
+ * nothing else. When a snapshot is published in which a feature has changed,
+ * the fragments rendered for it are discarded. The cache is bounded by the
+ * total size, in bytes, of the fragments, and evicts the least recently used.
+ * </p>
+ * 
+ * <p>
+ * Expected usage is as for the {@link FeatureToggleDroplet}, with any
+ * parameters the fragment depends on
+ * 
+ * <pre>
+ * &lt;dsp:droplet name="/deliverycube/common/featuretoggles/CachingFeatureToggleDroplet"&gt;
+ *   &lt;dsp:param name="feature" value="feature2.capability1"/&gt;
+ *   &lt;dsp:param name="locale" bean="/OriginatingRequest.requestLocale.localeString"/&gt;
+ *   &lt;dsp:oparam name="on"&gt;
+ *     &lt;!-- Content to render if the feature toggle is on --&gt;
+ *   &lt;/dsp:oparam&gt;
+ *   &lt;dsp:oparam name="off"&gt;
+ *     &lt;!-- Content to render if the feature toggle is off --&gt;
+ *   &lt;/dsp:oparam&gt;
+ * &lt;/dsp:droplet&gt;
+ * </pre>
+ * 
+ * where <code>cacheKeyParameters=locale</code>. Fragments are only cached if
+ * the <code>featureToggleService</code> is a
+ * {@link VersionedFeatureToggleService}. Only parameters whose values are
+ * strings, numbers, booleans, characters or enums can be part of the key - if
+ * any other object is given, such as a repository item, the fragment is
+ * rendered but not cached, as it would have no stable key.
+ * </p>
+ * 
+ * <p>
+ * A fragment is captured as <code>atg.droplet.Cache</code> captures its
+ * output - by replacing the output stream of the response, which the
+ * <code>oparam</code> renders to, for as long as it renders. A servlet that
+ * asks for the writer instead is given one that writes to the same capture.
+ * Nothing is flushed, so the response is not committed by the droplet, and
+ * the page can still set headers, cookies or a redirect after it. A fragment
+ * that renders nothing is not cached, so that if its output escapes the
+ * capture it is rendered every time rather than cached empty.
+ * </p>
+ * 
+ * @author Vihung Marathe
+ */
+public class CachingFeatureToggleDroplet extends FeatureToggleDroplet {
+    /** The cache, created on start up */
+    private volatile FragmentCache mCache;
+
+    /**
+     * Default constructor. Defers to <code>super()</code>
+     */
+    public CachingFeatureToggleDroplet() {
+        super();
+    }
+
+    /**
+     * Create the cache
+     * 
+     * @see atg.nucleus.GenericService#doStartService()
+     */
+    @Override
+    public void doStartService() throws ServiceException {
+        if (!(getFeatureToggleService() instanceof VersionedFeatureToggleService)) {
+            if (isLoggingWarning()) logWarning("doStartService(): featureToggleService is not a VersionedFeatureToggleService - fragments will not be cached");
+        }
+        mCache = new FragmentCache(getMaxCacheSize());
+    }
+
+    /**
+     * Discard the cache
+     * 
+     * @see atg.nucleus.GenericService#doStopService()
+     */
+    @Override
+    public void doStopService() throws ServiceException {
+        mCache = null;
+    }
+
+    /**
+     * Render the <code>OPARAM</code> for the value of a feature toggle from the
+     * cache, rendering and caching it if it is not there.
+     * 
+     * @see FeatureToggleDroplet#serviceFeatureToggle(String, boolean,
+     *      DynamoHttpServletRequest, ServletResponse)
+     */
+    @Override
+    protected void serviceFeatureToggle(final String pFeature, final boolean pFeatureToggled, final DynamoHttpServletRequest pRequest, final ServletResponse pResponse) throws ServletException, IOException {
+        final FragmentCache cache = mCache;
+        final FeatureToggleService featureToggleService = getFeatureToggleService();
+        if (cache == null || !(featureToggleService instanceof VersionedFeatureToggleService) || !(pResponse instanceof DynamoHttpServletResponse)) {
+            super.serviceFeatureToggle(pFeature, pFeatureToggled, pRequest, pResponse);
+            return;
+        }
+
+        final FeatureToggleSnapshot snapshot = ((VersionedFeatureToggleService) featureToggleService).getSnapshot();
+        if (snapshot.isFeatureToggled(pFeature) != pFeatureToggled) {
+            // a new snapshot was published since the feature toggle was read
+            super.serviceFeatureToggle(pFeature, pFeatureToggled, pRequest, pResponse);
+            return;
+        }
+
+        final int invalidated = cache.invalidate(snapshot);
+        if (invalidated > 0 && isLoggingDebug()) logDebug("serviceFeatureToggle(): Discarded " + invalidated + " fragments for snapshot version " + snapshot.getVersion());
+
+        final long featureVersion = snapshot.getFeatureVersion(pFeature);
+        final String key = getCacheKey(pFeature, featureVersion, pFeatureToggled, pRequest);
+        if (key == null) {
+            super.serviceFeatureToggle(pFeature, pFeatureToggled, pRequest, pResponse);
+            return;
+        }
+
+        final byte[] cached = cache.get(key);
+        if (cached != null) {
+            if (isLoggingDebug()) logDebug("serviceFeatureToggle(): Rendering cached fragment " + key);
+            pResponse.getOutputStream().write(cached);
+            return;
+        }
+
+        final byte[] content = render(pFeature, pFeatureToggled, pRequest, (DynamoHttpServletResponse) pResponse);
+        if (content.length == 0) {
+            if (isLoggingDebug()) logDebug("serviceFeatureToggle(): Not caching empty fragment " + key);
+        } else if (content.length <= getMaxFragmentSize()) {
+            if (isLoggingDebug()) logDebug("serviceFeatureToggle(): Caching fragment " + key + ", size=" + content.length);
+            cache.put(key, new FragmentCache.Fragment(key, pFeature, featureVersion, content));
+        }
+    }
+
+    /**
+     * Render the <code>OPARAM</code>, capturing its output - whether written to
+     * the output stream or the writer - then writing it to the response's own
+     * output stream
+     * 
+     * @return the output
+     */
+    private byte[] render(final String pFeature, final boolean pFeatureToggled, final DynamoHttpServletRequest pRequest, final DynamoHttpServletResponse pResponse) throws ServletException, IOException {
+        final ServletOutputStream out = pResponse.getOutputStream();
+        final CapturingResponse capture = new CapturingResponse(pResponse);
+        final byte[] content;
+        pResponse.setOutputStream(capture.getOutputStream());
+        try {
+            super.serviceFeatureToggle(pFeature, pFeatureToggled, pRequest, capture);
+        } finally {
+            pResponse.setOutputStream(out);
+            content = capture.toByteArray();
+        }
+        out.write(content);
+        return content;
+    }
+
+    /**
+     * Build the cache key for a fragment
+     * 
+     * @return the key, or <code>null</code> if a parameter the fragment depends
+     *         on has no stable string value
+     */
+    private String getCacheKey(final String pFeature, final long pFeatureVersion, final boolean pFeatureToggled, final DynamoHttpServletRequest pRequest) {
+        final StringBuilder key = new StringBuilder(64);
+        key.append(pFeature).append('#').append(pFeatureVersion).append(pFeatureToggled ? ":on" : ":off");
+        final String[] cacheKeyParameters = getCacheKeyParameters();
+        if (cacheKeyParameters != null) {
+            for (String parameter : cacheKeyParameters) {
+                final Object value = pRequest.getObjectParameter(parameter);
+                if (value != null && !(value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum<?>)) {
+                    if (isLoggingDebug()) logDebug("getCacheKey(): Not caching " + pFeature + " - parameter " + parameter + " is a " + value.getClass().getName());
+                    return null;
+                }
+                key.append('|').append(parameter).append('=').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Response that captures what is written to its output stream or writer,
+     * and passes everything else through to the response it wraps. Nothing is
+     * flushed to, or commits, the wrapped response.
+     */
+    private static class CapturingResponse extends HttpServletResponseWrapper {
+        private final CapturingOutputStream mOutputStream = new CapturingOutputStream();
+
+        private PrintWriter mWriter;
+
+        CapturingResponse(final HttpServletResponse pResponse) {
+            super(pResponse);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws UnsupportedEncodingException {
+            if (mWriter == null) {
+                final String encoding = getCharacterEncoding();
+                mWriter = new CapturingWriter(new OutputStreamWriter(mOutputStream, encoding != null ? encoding : "ISO-8859-1"));
+            }
+            return mWriter;
+        }
+
+        @Override
+        public void flushBuffer() {
+            // Only as far as the capture
+            if (mWriter != null) mWriter.flush();
+        }
+
+        @Override
+        public void resetBuffer() {
+            flushBuffer();
+            mOutputStream.reset();
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+        byte[] toByteArray() {
+            flushBuffer();
+            return mOutputStream.toByteArray();
+        }
+    }
+
+    /**
+     * Writer that passes each write straight through to the capture, so that
+     * output written to the writer and to the output stream stays in order
+     */
+    private static class CapturingWriter extends PrintWriter {
+        CapturingWriter(final OutputStreamWriter pWriter) {
+            super(pWriter);
+        }
+
+        @Override
+        public void write(final int pChar) {
+            super.write(pChar);
+            flush();
+        }
+
+        @Override
+        public void write(final char[] pChars, final int pOffset, final int pLength) {
+            super.write(pChars, pOffset, pLength);
+            flush();
+        }
+
+        @Override
+        public void write(final String pString, final int pOffset, final int pLength) {
+            super.write(pString, pOffset, pLength);
+            flush();
+        }
+    }
+
+    /**
+     * Output stream that captures what is written to it
+     */
+    private static class CapturingOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream(1024);
+
+        @Override
+        public void write(final int pByte) {
+            mBytes.write(pByte);
+        }
+
+        @Override
+        public void write(final byte[] pBytes, final int pOffset, final int pLength) {
+            mBytes.write(pBytes, pOffset, pLength);
+        }
+
+        void reset() {
+            mBytes.reset();
+        }
+
+        byte[] toByteArray() {
+            return mBytes.toByteArray();
+        }
+    }
+
+    /**
+     * Discard all cached fragments
+     */
+    public void clearCache() {
+        final FragmentCache cache = mCache;
+        if (cache != null) cache.clear();
+    }
+
+    /**
+     * @return the number of fragments cached
+     */
+    public int getCachedFragmentCount() {
+        final FragmentCache cache = mCache;
+        return cache == null ? 0 : cache.getFragmentCount();
+    }
+
+    /**
+     * @return the approximate total size of the cached fragments, in bytes
+     */
+    public long getCacheSize() {
+        final FragmentCache cache = mCache;
+        return cache == null ? 0 : cache.getSize();
+    }
+
+    /**
+     * @return the number of fragments rendered from the cache
+     */
+    public long getHitCount() {
+        final FragmentCache cache = mCache;
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    /**
+     * @return the number of fragments not found in the cache
+     */
+    public long getMissCount() {
+        final FragmentCache cache = mCache;
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    /**
+     * @return the number of fragments evicted to make room for others
+     */
+    public long getEvictionCount() {
+        final FragmentCache cache = mCache;
+        return cache == null ? 0 : cache.getEvictionCount();
+    }
+
+    /**
+     * The names of the droplet parameters, besides the feature, that the
+     * fragments depend on
+     */
+    private String[] mCacheKeyParameters;
+
+    public String[] getCacheKeyParameters() {
+        return mCacheKeyParameters;
+    }
+
+    public void setCacheKeyParameters(String[] pCacheKeyParameters) {
+        mCacheKeyParameters = pCacheKeyParameters;
+    }
+
+    /** The maximum total size of the cached fragments, in bytes. Applied on start up. */
+    private long mMaxCacheSize = 8L * 1024 * 1024;
+
+    public long getMaxCacheSize() {
+        return mMaxCacheSize;
+    }
+
+    public void setMaxCacheSize(long pMaxCacheSize) {
+        mMaxCacheSize = pMaxCacheSize;
+    }
+
+    /** The size, in bytes, above which a fragment is not cached */
+    private int mMaxFragmentSize = 64 * 1024;
+
+    public int getMaxFragmentSize() {
+        return mMaxFragmentSize;
+    }
+
+    public void setMaxFragmentSize(int pMaxFragmentSize) {
+        mMaxFragmentSize = pMaxFragmentSize;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Preallocated, lock-free ring buffer of feature toggle exposure events, with
+ * many producers and a single consumer.
+ * </p>
+ * 
+ * <p>
+ * Producers claim a sequence number with a compare-and-set, write the event
+ * into the slot for that sequence, then publish the slot. If the buffer is
+ * full, the event is dropped and counted - producers never block. The
+ * consumer reads published slots in sequence order.
+ * </p>
+ * 
+ * @author Vihung Marathe
+ */
+final class ExposureEventBuffer {
+
+    /**
+     * Receives events drained from the buffer
+     */
+    interface Handler {
+        void onEvent(long pTime, String pFeature, boolean pFeatureToggle, String pVisitorId) throws IOException;
+    }
+
+    private final int mCapacity;
+
+    private final int mMask;
+
+    private final long[] mTimes;
+
+    private final String[] mFeatures;
+
+    private final boolean[] mFeatureToggles;
+
+    private final String[] mVisitorIds;
+
+    /** The sequence number last published in each slot */
+    private final AtomicLongArray mPublished;
+
+    /** The next sequence number to be claimed by a producer */
+    private final AtomicLong mClaimed = new AtomicLong();
+
+    /** The next sequence number to be consumed. Only written by the consumer. */
+    private volatile long mConsumed;
+
+    /** Count of events dropped because the buffer was full */
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param pCapacity
+     *            the minimum capacity, rounded up to a power of two
+     */
+    ExposureEventBuffer(final int pCapacity) {
+        int capacity = 1;
+        while (capacity < pCapacity) {
+            capacity <<= 1;
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mTimes = new long[capacity];
+        mFeatures = new String[capacity];
+        mFeatureToggles = new boolean[capacity];
+        mVisitorIds = new String[capacity];
+        mPublished = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mPublished.set(i, -1);
+        }
+    }
+
+    /**
+     * Add an event, unless the buffer is full. Safe to call from any thread.
+     * 
+     * @return <code>true</code> if added, <code>false</code> if dropped
+     */
+    boolean offer(final long pTime, final String pFeature, final boolean pFeatureToggle, final String pVisitorId) {
+        long sequence;
+        do {
+            sequence = mClaimed.get();
+            if (sequence - mConsumed >= mCapacity) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+        } while (!mClaimed.compareAndSet(sequence, sequence + 1));
+
+        final int slot = (int) sequence & mMask;
+        mTimes[slot] = pTime;
+        mFeatures[slot] = pFeature;
+        mFeatureToggles[slot] = pFeatureToggle;
+        mVisitorIds[slot] = pVisitorId;
+
+        // the volatile write makes the slot visible to the consumer
+        mPublished.set(slot, sequence);
+        return true;
+    }
+
+    /**
+     * Pass up to the given number of published events, in order, to the
+     * handler. Must only be called from the single consumer thread.
+     * 
+     * @return the number of events drained
+     * @throws IOException
+     *             if the handler fails. Events already passed to it are
+     *             consumed.
+     */
+    int drain(final Handler pHandler, final int pMaxEvents) throws IOException {
+        long next = mConsumed;
+        int drained = 0;
+        try {
+            while (drained < pMaxEvents) {
+                final int slot = (int) next & mMask;
+                if (mPublished.get(slot) != next) break;
+
+                final String feature = mFeatures[slot];
+                final String visitorId = mVisitorIds[slot];
+                mFeatures[slot] = null;
+                mVisitorIds[slot] = null;
+                next++;
+                drained++;
+
+                pHandler.onEvent(mTimes[slot], feature, mFeatureToggles[slot], visitorId);
+            }
+        } finally {
+            // the volatile write frees the slots for producers
+            if (drained > 0) mConsumed = next;
+        }
+        return drained;
+    }
+
+    /**
+     * @return the capacity of the buffer
+     */
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the approximate number of events waiting to be consumed
+     */
+    int size() {
+        return (int) Math.max(0, mClaimed.get() - mConsumed);
+    }
+
+    /**
+     * @return the number of events dropped because the buffer was full
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+}
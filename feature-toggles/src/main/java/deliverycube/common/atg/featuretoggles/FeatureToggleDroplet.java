@@ -18,6 +18,7 @@ package deliverycube.common.atg.featuretoggles;
 import java.io.IOException;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
 
 import atg.core.util.StringUtils;
 import atg.nucleus.naming.ParameterName;
@@ -89,13 +90,28 @@ public class FeatureToggleDroplet extends DynamoServlet {
             boolean featureToggled = getFeatureToggleService().isFeatureToggled(feature);
             if (isLoggingDebug()) logDebug("service(): featureToggled=" + featureToggled);
 
-            if (featureToggled) {
-                if (isLoggingDebug()) logDebug("service(): Rendering OPARAM " + OPARAM_NAME__ON);
-                pRequest.serviceLocalParameter(OPARAM_NAME__ON, pRequest, pResponse);
-            } else {
-                if (isLoggingDebug()) logDebug("service(): Rendering OPARAM " + OPARAM_NAME__OFF);
-                pRequest.serviceLocalParameter(OPARAM_NAME__OFF, pRequest, pResponse);
-            }
+            serviceFeatureToggle(feature, featureToggled, pRequest, pResponse);
+        }
+    }
+
+    /**
+     * Render the <code>OPARAM</code> for the value of a feature toggle -
+     * <code>on</code> if true, <code>off</code> if not.
+     * 
+     * @param pFeature
+     *            the feature
+     * @param pFeatureToggled
+     *            the value of its feature toggle
+     * @param pResponse
+     *            the response to render the <code>OPARAM</code> to
+     */
+    protected void serviceFeatureToggle(final String pFeature, final boolean pFeatureToggled, final DynamoHttpServletRequest pRequest, final ServletResponse pResponse) throws ServletException, IOException {
+        if (pFeatureToggled) {
+            if (isLoggingDebug()) logDebug("serviceFeatureToggle(): Rendering OPARAM " + OPARAM_NAME__ON);
+            pRequest.serviceLocalParameter(OPARAM_NAME__ON, pRequest, pResponse);
+        } else {
+            if (isLoggingDebug()) logDebug("serviceFeatureToggle(): Rendering OPARAM " + OPARAM_NAME__OFF);
+            pRequest.serviceLocalParameter(OPARAM_NAME__OFF, pRequest, pResponse);
         }
     }
 
@@ -0,0 +1,517 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpSession;
+
+import atg.nucleus.GenericService;
+import atg.nucleus.ServiceException;
+import atg.servlet.DynamoHttpServletRequest;
+import atg.servlet.ServletUtil;
+
+/**
+ * <p>
+ * Log of which feature toggles each visitor has seen, for A/B analysis.
+ * </p>
+ * 
+ * <p>
+ * Exposures are recorded into a preallocated, lock-free
+ * {@link ExposureEventBuffer} and written to disk by a single background
+ * thread, so recording never blocks, and never does I/O on, the request
+ * thread. If the buffer is full, the exposure is dropped and counted.
+ * </p>
+ * 
+ * <p>
+ * Exposures are written in batches as newline-delimited JSON, one record per
+ * line, along the lines of
+ * 
+ * <pre>
+ * {"time":1351987200000,"visitor":"9f86d081884c7d659a2feaa0c55ad015","feature":"feature1","on":true}
+ * </pre>
+ * 
+ * to files named <code>&lt;filePrefix&gt;-&lt;timestamp&gt;.ndjson</code> in
+ * the configured <code>logDirectory</code>, which are rolled once they reach
+ * <code>maxFileSize</code> bytes. Only the newest <code>maxFileCount</code>
+ * files are kept - older ones are deleted as the log rolls.
+ * </p>
+ * 
+ * <p>
+ * The visitor is identified by their session id, but the session id itself is
+ * never written, as anyone able to read the log files could use it to take
+ * over the session. Instead, the log holds the first 128 bits, in hex, of an
+ * HMAC-SHA256 of the visitor id, keyed with <code>visitorIdKey</code>. The
+ * same visitor has the same hash across files and, if the key is configured,
+ * across restarts and instances. If no key is configured, a random key is
+ * generated on start up, so hashes can only be correlated within the one run.
+ * </p>
+ * 
+ * @author Vihung Marathe
+ */
+public class FeatureToggleExposureLog extends GenericService {
+    /** The character encoding of the log files */
+    private static final String ENCODING = "UTF-8";
+
+    /** The keyed hash of visitor ids */
+    private static final String VISITOR_ID_ALGORITHM = "HmacSHA256";
+
+    /** The number of leading bytes of the hash written to the log */
+    private static final int VISITOR_HASH_BYTES = 16;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** The ring buffer, created on start up */
+    private volatile ExposureEventBuffer mBuffer;
+
+    /** The background thread writing the log files */
+    private Thread mWriterThread;
+
+    /** Whether the background thread should keep running */
+    private volatile boolean mWriting;
+
+    /** Count of exposures written to the log files */
+    private final AtomicLong mWrittenCount = new AtomicLong();
+
+    /**
+     * Default Constructor. Delegates to <code>super()</code>.
+     */
+    public FeatureToggleExposureLog() {
+        super();
+    }
+
+    /**
+     * Create the buffer and start the background thread
+     * 
+     * @see atg.nucleus.GenericService#doStartService()
+     */
+    @Override
+    public void doStartService() throws ServiceException {
+        final File logDirectory = new File(getLogDirectory());
+        if (!logDirectory.isDirectory() && !logDirectory.mkdirs()) {
+            throw new ServiceException("Could not create logDirectory " + logDirectory.getAbsolutePath());
+        }
+
+        final ExposureEventBuffer buffer = new ExposureEventBuffer(getBufferSize());
+        final LogFileWriter writer = new LogFileWriter(logDirectory, buffer, createVisitorIdMac());
+
+        mWriting = true;
+        mWriterThread = new Thread(writer, "FeatureToggleExposureLog");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+        mBuffer = buffer;
+
+        if (isLoggingInfo()) logInfo("doStartService(): Logging exposures to " + logDirectory.getAbsolutePath() + ", bufferSize=" + buffer.getCapacity());
+    }
+
+    /**
+     * Stop the background thread, once it has written all recorded exposures
+     * 
+     * @see atg.nucleus.GenericService#doStopService()
+     */
+    @Override
+    public void doStopService() throws ServiceException {
+        mBuffer = null;
+        mWriting = false;
+        if (mWriterThread != null) {
+            LockSupport.unpark(mWriterThread);
+            try {
+                mWriterThread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mWriterThread = null;
+        }
+    }
+
+    /**
+     * Record that the visitor making the current request has seen a feature
+     * toggle. Never blocks.
+     * 
+     * @param pFeature
+     *            the feature
+     * @param pFeatureToggle
+     *            the value of the feature toggle seen
+     * @return <code>true</code> if recorded, <code>false</code> if dropped
+     *         because the buffer is full, or the log is not running
+     */
+    public boolean recordExposure(final String pFeature, final boolean pFeatureToggle) {
+        return recordExposure(pFeature, pFeatureToggle, getVisitorId(ServletUtil.getCurrentRequest()));
+    }
+
+    /**
+     * Record that a visitor has seen a feature toggle. Never blocks.
+     * 
+     * @param pFeature
+     *            the feature
+     * @param pFeatureToggle
+     *            the value of the feature toggle seen
+     * @param pVisitorId
+     *            the visitor, may be <code>null</code> if unknown. It is
+     *            hashed before it is written.
+     * @return <code>true</code> if recorded, <code>false</code> if dropped
+     *         because the buffer is full, or the log is not running
+     */
+    public boolean recordExposure(final String pFeature, final boolean pFeatureToggle, final String pVisitorId) {
+        final ExposureEventBuffer buffer = mBuffer;
+        if (buffer == null) return false;
+        return buffer.offer(System.currentTimeMillis(), pFeature, pFeatureToggle, pVisitorId);
+    }
+
+    /**
+     * Identify the visitor making a request, without creating a session. The
+     * id is hashed before it is written.
+     * 
+     * @param pRequest
+     *            the request, may be <code>null</code>
+     * @return the session id, or <code>null</code> if there is none
+     */
+    protected String getVisitorId(final DynamoHttpServletRequest pRequest) {
+        if (pRequest == null) return null;
+        final HttpSession session = pRequest.getSession(false);
+        return session != null ? session.getId() : pRequest.getRequestedSessionId();
+    }
+
+    /**
+     * Create the HMAC used to hash visitor ids, keyed with
+     * <code>visitorIdKey</code> or, if none is configured, a random key
+     */
+    private Mac createVisitorIdMac() throws ServiceException {
+        final byte[] key;
+        if (getVisitorIdKey() != null && getVisitorIdKey().length() > 0) {
+            try {
+                key = getVisitorIdKey().getBytes(ENCODING);
+            } catch (IOException e) {
+                throw new ServiceException("Could not read visitorIdKey", e);
+            }
+        } else {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            if (isLoggingInfo()) logInfo("createVisitorIdMac(): No visitorIdKey configured, visitor ids will not match across restarts or instances");
+        }
+
+        try {
+            final Mac mac = Mac.getInstance(VISITOR_ID_ALGORITHM);
+            mac.init(new SecretKeySpec(key, VISITOR_ID_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new ServiceException("Could not create " + VISITOR_ID_ALGORITHM + " for visitor ids", e);
+        }
+    }
+
+    /**
+     * Background task draining the buffer to rolling log files
+     */
+    private class LogFileWriter implements Runnable, ExposureEventBuffer.Handler {
+        private final File mLogDirectory;
+
+        private final ExposureEventBuffer mEvents;
+
+        private final StringBuilder mRecord = new StringBuilder(128);
+
+        /** Hashes visitor ids - only used by this thread */
+        private final Mac mVisitorIdMac;
+
+        /** The last visitor id hashed, and its hash, as exposures tend to come in runs from the same visitor */
+        private String mLastVisitorId;
+
+        private String mLastVisitorHash;
+
+        private Writer mWriter;
+
+        private long mFileSize;
+
+        LogFileWriter(final File pLogDirectory, final ExposureEventBuffer pEvents, final Mac pVisitorIdMac) {
+            mLogDirectory = pLogDirectory;
+            mEvents = pEvents;
+            mVisitorIdMac = pVisitorIdMac;
+        }
+
+        public void run() {
+            final long idleNanos = TimeUnit.MILLISECONDS.toNanos(getFlushInterval());
+            try {
+                while (true) {
+                    final boolean writing = mWriting;
+                    final int drained = drain();
+                    if (drained == 0) {
+                        flush();
+                        if (!writing) break;
+                        LockSupport.parkNanos(idleNanos);
+                    }
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private int drain() {
+            try {
+                final int drained = mEvents.drain(this, getBatchSize());
+                mWrittenCount.addAndGet(drained);
+                return drained;
+            } catch (IOException e) {
+                logError("Could not write feature toggle exposures", e);
+                close();
+                return 0;
+            }
+        }
+
+        public void onEvent(final long pTime, final String pFeature, final boolean pFeatureToggle, final String pVisitorId) throws IOException {
+            mRecord.setLength(0);
+            mRecord.append("{\"time\":").append(pTime);
+            mRecord.append(",\"visitor\":");
+            appendJsonString(mRecord, hashVisitorId(pVisitorId));
+            mRecord.append(",\"feature\":");
+            appendJsonString(mRecord, pFeature);
+            mRecord.append(",\"on\":").append(pFeatureToggle).append("}\n");
+
+            if (mWriter == null || mFileSize >= getMaxFileSize()) roll();
+            mWriter.append(mRecord);
+            mFileSize += mRecord.length();
+        }
+
+        private String hashVisitorId(final String pVisitorId) throws IOException {
+            if (pVisitorId == null) return null;
+            if (!pVisitorId.equals(mLastVisitorId)) {
+                final byte[] hash = mVisitorIdMac.doFinal(pVisitorId.getBytes(ENCODING));
+                final StringBuilder hex = new StringBuilder(VISITOR_HASH_BYTES * 2);
+                for (int i = 0; i < VISITOR_HASH_BYTES; i++) {
+                    hex.append(HEX_DIGITS[(hash[i] >> 4) & 0xf]).append(HEX_DIGITS[hash[i] & 0xf]);
+                }
+                mLastVisitorId = pVisitorId;
+                mLastVisitorHash = hex.toString();
+            }
+            return mLastVisitorHash;
+        }
+
+        private void roll() throws IOException {
+            close();
+            final String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+            final File file = new File(mLogDirectory, getFilePrefix() + "-" + timestamp + ".ndjson");
+            if (isLoggingDebug()) logDebug("roll(): Writing exposures to " + file.getAbsolutePath());
+            mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), ENCODING), 64 * 1024);
+            mFileSize = file.length();
+            deleteOldFiles(mLogDirectory);
+        }
+
+        private void flush() {
+            if (mWriter == null) return;
+            try {
+                mWriter.flush();
+            } catch (IOException e) {
+                logError("Could not write feature toggle exposures", e);
+                close();
+            }
+        }
+
+        private void close() {
+            if (mWriter == null) return;
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                logError("Could not close feature toggle exposure log", e);
+            }
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Delete the oldest log files in a directory, keeping the newest
+     * <code>maxFileCount</code>. The timestamps in their names sort in the
+     * order they were created.
+     * 
+     * @param pLogDirectory
+     *            the directory
+     * @return the number of files deleted
+     */
+    int deleteOldFiles(final File pLogDirectory) {
+        final int maxFileCount = getMaxFileCount();
+        if (maxFileCount <= 0) return 0;
+
+        final String prefix = getFilePrefix() + "-";
+        final String[] names = pLogDirectory.list(new FilenameFilter() {
+            public boolean accept(final File pDirectory, final String pName) {
+                return pName.startsWith(prefix) && pName.endsWith(".ndjson");
+            }
+        });
+        if (names == null || names.length <= maxFileCount) return 0;
+
+        Arrays.sort(names);
+        int deleted = 0;
+        for (int i = 0; i < names.length - maxFileCount; i++) {
+            final File file = new File(pLogDirectory, names[i]);
+            if (file.delete()) {
+                if (isLoggingDebug()) logDebug("deleteOldFiles(): Deleted " + file.getAbsolutePath());
+                deleted++;
+            } else {
+                if (isLoggingWarning()) logWarning("deleteOldFiles(): Could not delete " + file.getAbsolutePath());
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Append a string as a JSON string literal
+     */
+    private static void appendJsonString(final StringBuilder pBuilder, final String pValue) {
+        if (pValue == null) {
+            pBuilder.append("null");
+            return;
+        }
+        pBuilder.append('"');
+        for (int i = 0; i < pValue.length(); i++) {
+            final char c = pValue.charAt(i);
+            if (c == '"' || c == '\\') {
+                pBuilder.append('\\').append(c);
+            } else if (c < 0x20) {
+                pBuilder.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                pBuilder.append(c);
+            }
+        }
+        pBuilder.append('"');
+    }
+
+    /**
+     * @return the number of exposures recorded but not yet written
+     */
+    public int getPendingCount() {
+        final ExposureEventBuffer buffer = mBuffer;
+        return buffer == null ? 0 : buffer.size();
+    }
+
+    /**
+     * @return the number of exposures dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        final ExposureEventBuffer buffer = mBuffer;
+        return buffer == null ? 0 : buffer.getDroppedCount();
+    }
+
+    /**
+     * @return the number of exposures written to the log files
+     */
+    public long getWrittenCount() {
+        return mWrittenCount.get();
+    }
+
+    /** The number of exposures the buffer can hold, rounded up to a power of two */
+    private int mBufferSize = 8192;
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public void setBufferSize(final int pBufferSize) {
+        mBufferSize = pBufferSize;
+    }
+
+    /** The maximum number of exposures written at a time */
+    private int mBatchSize = 512;
+
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    public void setBatchSize(final int pBatchSize) {
+        mBatchSize = pBatchSize;
+    }
+
+    /** How long to wait, in milliseconds, for more exposures once the buffer is empty */
+    private long mFlushInterval = 1000;
+
+    public long getFlushInterval() {
+        return mFlushInterval;
+    }
+
+    public void setFlushInterval(final long pFlushInterval) {
+        mFlushInterval = pFlushInterval;
+    }
+
+    /** The directory to write the log files to */
+    private String mLogDirectory = "logs/featuretoggles";
+
+    public String getLogDirectory() {
+        return mLogDirectory;
+    }
+
+    public void setLogDirectory(final String pLogDirectory) {
+        mLogDirectory = pLogDirectory;
+    }
+
+    /** The prefix of the log file names */
+    private String mFilePrefix = "exposures";
+
+    public String getFilePrefix() {
+        return mFilePrefix;
+    }
+
+    public void setFilePrefix(final String pFilePrefix) {
+        mFilePrefix = pFilePrefix;
+    }
+
+    /** The size, in bytes, at which a log file is rolled */
+    private long mMaxFileSize = 64L * 1024 * 1024;
+
+    public long getMaxFileSize() {
+        return mMaxFileSize;
+    }
+
+    public void setMaxFileSize(final long pMaxFileSize) {
+        mMaxFileSize = pMaxFileSize;
+    }
+
+    /** The number of log files to keep, including the one being written - if 0 or less, all are kept */
+    private int mMaxFileCount = 48;
+
+    public int getMaxFileCount() {
+        return mMaxFileCount;
+    }
+
+    public void setMaxFileCount(final int pMaxFileCount) {
+        mMaxFileCount = pMaxFileCount;
+    }
+
+    /**
+     * The key used to hash visitor ids. Configure the same secret on every
+     * instance for their hashes to match - if empty, a random key is used.
+     */
+    private String mVisitorIdKey;
+
+    public String getVisitorIdKey() {
+        return mVisitorIdKey;
+    }
+
+    public void setVisitorIdKey(final String pVisitorIdKey) {
+        mVisitorIdKey = pVisitorIdKey;
+    }
+}
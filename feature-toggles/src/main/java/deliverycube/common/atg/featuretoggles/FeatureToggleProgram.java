@@ -0,0 +1,554 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * The configured feature toggles, compiled into a program that evaluates all
+ * of them in one pass.
+ * </p>
+ * 
+ * <p>
+ * A feature toggle value is either <code>true</code> or <code>false</code>, or
+ * a boolean expression over other feature toggles, using <code>!</code>,
+ * <code>&amp;&amp;</code>, <code>||</code> and parentheses, for example
+ * 
+ * <pre>
+ *     feature2.capability2=feature1 &amp;&amp; !legacyCheckout
+ * </pre>
+ * 
+ * </p>
+ * 
+ * <p>
+ * A value may also be scheduled to take effect at a given time, as
+ * <code>value@instant</code>, where the instant is in ISO-8601 format with a
+ * time zone. Several values may be given, separated by <code>;</code>, the
+ * first optionally without an instant to give the value until the first
+ * instant, for example
+ * 
+ * <pre>
+ *     promo.blackfriday=false;true@2026-11-27T00:00Z;false@2026-11-30T00:00Z
+ * </pre>
+ * 
+ * Until its first instant, a toggle with no unscheduled value is off.
+ * </p>
+ * 
+ * <p>
+ * Each expression is parsed once, when the program is compiled, into postfix
+ * instructions over numbered slots. The toggles are ordered so that every
+ * toggle is evaluated after the toggles it refers to. A toggle whose value
+ * cannot be parsed, or which refers to itself directly or indirectly, is
+ * reported as an error and evaluates to <code>false</code>, as does a
+ * reference to a toggle that is not configured.
+ * </p>
+ * 
+ * @author Vihung Marathe
+ */
+final class FeatureToggleProgram {
+    /** Push the value of the slot in the operand */
+    private static final int OP_LOAD = 0;
+
+    /** Push <code>true</code> */
+    private static final int OP_TRUE = 1;
+
+    /** Push <code>false</code> */
+    private static final int OP_FALSE = 2;
+
+    /** Pop one value, push its negation */
+    private static final int OP_NOT = 3;
+
+    /** Pop two values, push their conjunction */
+    private static final int OP_AND = 4;
+
+    /** Pop two values, push their disjunction */
+    private static final int OP_OR = 5;
+
+    /** Number of low bits of an instruction holding the op code */
+    private static final int OP_BITS = 3;
+
+    private static final int OP_MASK = (1 << OP_BITS) - 1;
+
+    /** The compiled program of a toggle that is in error */
+    private static final int[] CODE_FALSE = { OP_FALSE };
+
+    /** The compiled segments of a toggle that is in error */
+    private static final Segments SEGMENTS_FALSE = new Segments(new long[] { Long.MIN_VALUE }, new int[][] { CODE_FALSE });
+
+    /** The format of a scheduled instant */
+    private static final Pattern INSTANT = Pattern.compile("(\\d{4})-(\\d{2})-(\\d{2})T(\\d{2}):(\\d{2})(?::(\\d{2}))?(?:Z|([+-])(\\d{2}):?(\\d{2}))");
+
+    /**
+     * The compiled values of a toggle - each in effect from its start time
+     * until the start time of the next
+     */
+    private static final class Segments {
+        /** The start time of each value, ascending, in wall clock millis */
+        final long[] mStarts;
+
+        /** The instructions of each value */
+        final int[][] mCode;
+
+        Segments(final long[] pStarts, final int[][] pCode) {
+            mStarts = pStarts;
+            mCode = pCode;
+        }
+
+        /**
+         * @return the instructions of the value in effect at the given time
+         */
+        int[] codeAt(final long pTime) {
+            int segment = mStarts.length - 1;
+            while (segment > 0 && mStarts[segment] > pTime) {
+                segment--;
+            }
+            return mStarts[segment] <= pTime ? mCode[segment] : CODE_FALSE;
+        }
+    }
+
+    /** The names of the configured toggles, indexed by slot */
+    private final String[] mNames;
+
+    /** The compiled values of each configured toggle, in evaluation order */
+    private final Segments[] mSegments;
+
+    /** The slot that each entry of {@link #mSegments} evaluates */
+    private final int[] mTargets;
+
+    /** The start times of all scheduled values, ascending */
+    private final long[] mBoundaries;
+
+    /** The slot of each name - configured toggles, then unconfigured references */
+    private final Map<String, Integer> mSlots;
+
+    /** The deepest the evaluation stack can get */
+    private final int mMaxStack;
+
+    /** Errors found while compiling */
+    private final List<String> mErrors;
+
+    private FeatureToggleProgram(final String[] pNames, final Segments[] pSegments, final int[] pTargets, final long[] pBoundaries, final Map<String, Integer> pSlots,
+            final int pMaxStack, final List<String> pErrors) {
+        super();
+        mNames = pNames;
+        mSegments = pSegments;
+        mTargets = pTargets;
+        mBoundaries = pBoundaries;
+        mSlots = pSlots;
+        mMaxStack = pMaxStack;
+        mErrors = pErrors;
+    }
+
+    /**
+     * Compile the configured feature toggles.
+     * 
+     * @param pFeatureToggles
+     *            the configured feature toggles, may be <code>null</code>
+     * @return the compiled program
+     */
+    static FeatureToggleProgram compile(final Properties pFeatureToggles) {
+        final List<String> errors = new ArrayList<String>();
+
+        // Number the configured toggles first, in a stable order
+        final Map<String, Integer> slots = new LinkedHashMap<String, Integer>();
+        if (pFeatureToggles != null) {
+            for (String name : new TreeSet<String>(pFeatureToggles.stringPropertyNames())) {
+                slots.put(name, Integer.valueOf(slots.size()));
+            }
+        }
+        final int configuredCount = slots.size();
+        final String[] names = slots.keySet().toArray(new String[configuredCount]);
+
+        // Parse each toggle into instructions; unconfigured references get further slots
+        final Segments[] parsed = new Segments[configuredCount];
+        for (int slot = 0; slot < configuredCount; slot++) {
+            final String value = pFeatureToggles.getProperty(names[slot]);
+            try {
+                parsed[slot] = parseSegments(value, slots);
+            } catch (IllegalArgumentException e) {
+                errors.add("Feature toggle " + names[slot] + "=" + value + " is invalid, and will be off: " + e.getMessage());
+                parsed[slot] = SEGMENTS_FALSE;
+            }
+        }
+
+        // Order the toggles so that each follows those it refers to
+        final int[] state = new int[configuredCount];
+        final int[] order = new int[configuredCount];
+        final int[] count = new int[1];
+        for (int slot = 0; slot < configuredCount; slot++) {
+            visit(slot, parsed, names, state, order, count, new ArrayList<Integer>(), errors);
+        }
+
+        final Segments[] segments = new Segments[configuredCount];
+        final TreeSet<Long> boundaries = new TreeSet<Long>();
+        int maxStack = 1;
+        for (int i = 0; i < configuredCount; i++) {
+            segments[i] = parsed[order[i]];
+            for (int segment = 0; segment < segments[i].mCode.length; segment++) {
+                maxStack = Math.max(maxStack, stackDepth(segments[i].mCode[segment]));
+                if (segments[i].mStarts[segment] != Long.MIN_VALUE) boundaries.add(Long.valueOf(segments[i].mStarts[segment]));
+            }
+        }
+
+        final long[] boundaryTimes = new long[boundaries.size()];
+        int boundary = 0;
+        for (Long time : boundaries) {
+            boundaryTimes[boundary++] = time.longValue();
+        }
+
+        return new FeatureToggleProgram(names, segments, order, boundaryTimes, slots, maxStack, errors);
+    }
+
+    /**
+     * Parse a toggle value into its, possibly scheduled, values
+     */
+    private static Segments parseSegments(final String pValue, final Map<String, Integer> pSlots) {
+        if (pValue == null || pValue.indexOf('@') < 0) {
+            return new Segments(new long[] { Long.MIN_VALUE }, new int[][] { new Parser(pValue, pSlots).parse() });
+        }
+
+        final TreeMap<Long, int[]> segments = new TreeMap<Long, int[]>();
+        final String[] parts = pValue.split(";");
+        for (int i = 0; i < parts.length; i++) {
+            final int at = parts[i].lastIndexOf('@');
+            if (at < 0) {
+                if (i > 0) throw new IllegalArgumentException("only the first value may be unscheduled");
+                segments.put(Long.valueOf(Long.MIN_VALUE), new Parser(parts[i], pSlots).parse());
+            } else {
+                final Long start = Long.valueOf(parseInstant(parts[i].substring(at + 1).trim()));
+                if (segments.containsKey(start)) throw new IllegalArgumentException("two values scheduled at " + parts[i].substring(at + 1).trim());
+                segments.put(start, new Parser(parts[i].substring(0, at), pSlots).parse());
+            }
+        }
+
+        final long[] starts = new long[segments.size()];
+        final int[][] code = new int[segments.size()][];
+        int segment = 0;
+        for (Map.Entry<Long, int[]> entry : segments.entrySet()) {
+            starts[segment] = entry.getKey().longValue();
+            code[segment++] = entry.getValue();
+        }
+        return new Segments(starts, code);
+    }
+
+    /**
+     * Parse an ISO-8601 instant with a time zone, such as
+     * <code>2026-11-27T00:00Z</code> or
+     * <code>2026-11-27T00:00:00+01:00</code>
+     * 
+     * @return the instant in wall clock millis
+     */
+    private static long parseInstant(final String pInstant) {
+        final Matcher matcher = INSTANT.matcher(pInstant);
+        if (!matcher.matches()) throw new IllegalArgumentException("invalid instant '" + pInstant + "', expected for example 2026-11-27T00:00Z");
+
+        final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setLenient(false);
+        calendar.clear();
+        calendar.set(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) - 1, Integer.parseInt(matcher.group(3)),
+                Integer.parseInt(matcher.group(4)), Integer.parseInt(matcher.group(5)), matcher.group(6) == null ? 0 : Integer.parseInt(matcher.group(6)));
+
+        final long time;
+        try {
+            time = calendar.getTimeInMillis();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid instant '" + pInstant + "'");
+        }
+
+        if (matcher.group(7) == null) return time;
+        final long offset = (Integer.parseInt(matcher.group(8)) * 60L + Integer.parseInt(matcher.group(9))) * 60000L;
+        return "+".equals(matcher.group(7)) ? time - offset : time + offset;
+    }
+
+    /**
+     * Depth-first visit of a toggle and the configured toggles it refers to,
+     * appending each to the evaluation order after its references. Toggles
+     * found to be in a cycle are replaced with <code>false</code>.
+     */
+    private static void visit(final int pSlot, final Segments[] pParsed, final String[] pNames, final int[] pState, final int[] pOrder, final int[] pCount,
+            final List<Integer> pPath, final List<String> pErrors) {
+        // 0 = not visited, 1 = being visited, 2 = visited
+        if (pState[pSlot] == 2) return;
+
+        if (pState[pSlot] == 1) {
+            final StringBuilder cycle = new StringBuilder();
+            for (int i = pPath.indexOf(Integer.valueOf(pSlot)); i < pPath.size(); i++) {
+                final int member = pPath.get(i).intValue();
+                cycle.append(pNames[member]).append(" -> ");
+                pParsed[member] = SEGMENTS_FALSE;
+            }
+            cycle.append(pNames[pSlot]);
+            pErrors.add("Feature toggles refer to each other, and will be off: " + cycle);
+            return;
+        }
+
+        pState[pSlot] = 1;
+        pPath.add(Integer.valueOf(pSlot));
+        for (int[] code : pParsed[pSlot].mCode) {
+            for (int instruction : code) {
+                final int operand = instruction >>> OP_BITS;
+                if ((instruction & OP_MASK) == OP_LOAD && operand < pNames.length) {
+                    visit(operand, pParsed, pNames, pState, pOrder, pCount, pPath, pErrors);
+                }
+            }
+        }
+        pPath.remove(pPath.size() - 1);
+        pState[pSlot] = 2;
+        pOrder[pCount[0]++] = pSlot;
+    }
+
+    private static int stackDepth(final int[] pCode) {
+        int depth = 0;
+        int maxDepth = 0;
+        for (int instruction : pCode) {
+            switch (instruction & OP_MASK) {
+            case OP_LOAD:
+            case OP_TRUE:
+            case OP_FALSE:
+                maxDepth = Math.max(maxDepth, ++depth);
+                break;
+            case OP_AND:
+            case OP_OR:
+                depth--;
+                break;
+            default: // case OP_NOT
+                break;
+            }
+        }
+        return maxDepth;
+    }
+
+    /**
+     * Evaluate all configured toggles, as they are at the given time.
+     * 
+     * @param pTime
+     *            the wall clock time, in millis
+     * @return the map of (featureName --&gt; featureToggle)
+     */
+    Map<String, Boolean> evaluate(final long pTime) {
+        return evaluate(pTime, Collections.<String, Boolean> emptyMap());
+    }
+
+    /**
+     * Evaluate all configured toggles, as they are at the given time, with
+     * some toggles overridden. Toggles that refer to an overridden toggle see
+     * the overridden value.
+     * 
+     * @param pTime
+     *            the wall clock time, in millis
+     * @param pOverrides
+     *            the map of (featureName --&gt; featureToggle) overrides
+     * @return the map of (featureName --&gt; featureToggle), including all
+     *         overrides
+     */
+    Map<String, Boolean> evaluate(final long pTime, final Map<String, Boolean> pOverrides) {
+        final boolean[] values = new boolean[mSlots.size()];
+        final boolean[] stack = new boolean[mMaxStack];
+
+        // overridden[slot] is null if the slot is not overridden
+        final Boolean[] overridden = new Boolean[values.length];
+        for (Map.Entry<String, Boolean> override : pOverrides.entrySet()) {
+            final Integer slot = mSlots.get(override.getKey());
+            if (slot != null) {
+                overridden[slot.intValue()] = override.getValue();
+                values[slot.intValue()] = override.getValue().booleanValue();
+            }
+        }
+
+        for (int i = 0; i < mSegments.length; i++) {
+            int top = -1;
+            for (int instruction : mSegments[i].codeAt(pTime)) {
+                switch (instruction & OP_MASK) {
+                case OP_LOAD:
+                    stack[++top] = values[instruction >>> OP_BITS];
+                    break;
+                case OP_TRUE:
+                    stack[++top] = true;
+                    break;
+                case OP_FALSE:
+                    stack[++top] = false;
+                    break;
+                case OP_NOT:
+                    stack[top] = !stack[top];
+                    break;
+                case OP_AND:
+                    top--;
+                    stack[top] = stack[top] && stack[top + 1];
+                    break;
+                default: // case OP_OR
+                    top--;
+                    stack[top] = stack[top] || stack[top + 1];
+                    break;
+                }
+            }
+            final int target = mTargets[i];
+            values[target] = overridden[target] != null ? overridden[target].booleanValue() : stack[0];
+        }
+
+        final Map<String, Boolean> featureToggles = new HashMap<String, Boolean>(pOverrides);
+        for (int slot = 0; slot < mNames.length; slot++) {
+            featureToggles.put(mNames[slot], Boolean.valueOf(values[slot]));
+        }
+        return featureToggles;
+    }
+
+    /**
+     * Find the next time at which a scheduled value takes effect
+     * 
+     * @param pTime
+     *            the wall clock time, in millis
+     * @return the first start time of a scheduled value after the given time,
+     *         or {@link Long#MAX_VALUE} if there is none
+     */
+    long nextBoundary(final long pTime) {
+        for (long boundary : mBoundaries) {
+            if (boundary > pTime) return boundary;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return errors found while compiling, each of which has made a toggle
+     *         off
+     */
+    List<String> getErrors() {
+        return mErrors;
+    }
+
+    /**
+     * Recursive descent parser of a single toggle value into postfix
+     * instructions.
+     * 
+     * <pre>
+     * or      := and ( '||' and )*
+     * and     := unary ( '&amp;&amp;' unary )*
+     * unary   := '!' unary | '(' or ')' | 'true' | 'false' | feature
+     * </pre>
+     */
+    private static final class Parser {
+        private final String mValue;
+
+        private final Map<String, Integer> mSlots;
+
+        private final List<Integer> mCode = new ArrayList<Integer>();
+
+        private int mPosition;
+
+        Parser(final String pValue, final Map<String, Integer> pSlots) {
+            mValue = pValue == null ? "" : pValue;
+            mSlots = pSlots;
+        }
+
+        int[] parse() {
+            skipWhitespace();
+            // an empty value is off, as before
+            if (mPosition == mValue.length()) return CODE_FALSE;
+
+            parseOr();
+            if (mPosition < mValue.length()) throw new IllegalArgumentException("unexpected '" + mValue.charAt(mPosition) + "' at " + mPosition);
+
+            final int[] code = new int[mCode.size()];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = mCode.get(i).intValue();
+            }
+            return code;
+        }
+
+        private void parseOr() {
+            parseAnd();
+            while (accept("||")) {
+                parseAnd();
+                mCode.add(Integer.valueOf(OP_OR));
+            }
+        }
+
+        private void parseAnd() {
+            parseUnary();
+            while (accept("&&")) {
+                parseUnary();
+                mCode.add(Integer.valueOf(OP_AND));
+            }
+        }
+
+        private void parseUnary() {
+            if (accept("!")) {
+                parseUnary();
+                mCode.add(Integer.valueOf(OP_NOT));
+            } else if (accept("(")) {
+                parseOr();
+                if (!accept(")")) throw new IllegalArgumentException("missing ')' at " + mPosition);
+            } else {
+                final String name = parseName();
+                if ("true".equalsIgnoreCase(name)) {
+                    mCode.add(Integer.valueOf(OP_TRUE));
+                } else if ("false".equalsIgnoreCase(name)) {
+                    mCode.add(Integer.valueOf(OP_FALSE));
+                } else {
+                    Integer slot = mSlots.get(name);
+                    if (slot == null) {
+                        slot = Integer.valueOf(mSlots.size());
+                        mSlots.put(name, slot);
+                    }
+                    mCode.add(Integer.valueOf(OP_LOAD | slot.intValue() << OP_BITS));
+                }
+            }
+        }
+
+        private String parseName() {
+            final int start = mPosition;
+            while (mPosition < mValue.length() && isNameChar(mValue.charAt(mPosition))) {
+                mPosition++;
+            }
+            if (start == mPosition) {
+                if (mPosition == mValue.length()) throw new IllegalArgumentException("unexpected end");
+                throw new IllegalArgumentException("unexpected '" + mValue.charAt(mPosition) + "' at " + mPosition);
+            }
+            final String name = mValue.substring(start, mPosition);
+            skipWhitespace();
+            return name;
+        }
+
+        private boolean accept(final String pToken) {
+            if (!mValue.startsWith(pToken, mPosition)) return false;
+            mPosition += pToken.length();
+            skipWhitespace();
+            return true;
+        }
+
+        private void skipWhitespace() {
+            while (mPosition < mValue.length() && Character.isWhitespace(mValue.charAt(mPosition))) {
+                mPosition++;
+            }
+        }
+
+        private static boolean isNameChar(final char pChar) {
+            return Character.isLetterOrDigit(pChar) || pChar == '.' || pChar == '_' || pChar == '-';
+        }
+    }
+}
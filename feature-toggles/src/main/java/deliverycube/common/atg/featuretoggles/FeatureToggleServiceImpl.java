@@ -15,14 +15,18 @@
  */
 package deliverycube.common.atg.featuretoggles;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import atg.core.util.StringUtils;
 import atg.nucleus.GenericService;
+import atg.nucleus.ServiceException;
 
 /**
  * <p>
@@ -44,28 +48,69 @@ import atg.nucleus.GenericService;
  * <pre>
  *     feature1=true,\
  *     feature2.capability1=false,\
- *     feature2.capability2=true
+ *     feature2.capability2=true,\
+ *     feature2.capability3=feature1 &amp;&amp; !feature2.capability1
  * </pre>
  * 
+ * where a value may be a boolean expression over other feature toggles, and
+ * may be scheduled to take effect at a given time, such as
+ * <code>promo.blackfriday=true@2026-11-27T00:00Z</code> (see
+ * {@link FeatureToggleProgram}).
  * </p>
  * 
  * <p>
- * This implementation loads values from the {@link Properties} as needed and
- * caches the results. To aid development, it also stores a local list of all
- * feature queries
+ * This implementation compiles the {@link Properties} once, when they are set,
+ * and evaluates every feature toggle - including compound ones - into an
+ * immutable {@link FeatureToggleSnapshot}, which is published on start up and
+ * whenever the {@link Properties} change. A {@link HashedTimerWheel}
+ * publishes a new snapshot as each scheduled value takes effect, so lookups
+ * only read the current snapshot - they never read the clock. To aid
+ * development, it also stores a local list of all feature queries
+ * </p>
+ * 
+ * <p>
+ * If an <code>exposureLog</code> is configured, every lookup - including those
+ * made by the {@link FeatureToggleDroplet} - is recorded in it, so that it is
+ * known which feature toggles each visitor has seen.
+ * </p>
+ * 
+ * <p>
+ * Feature toggles may be overridden at runtime, for example from the
+ * component browser, with {@link #overrideFeatureToggle(String, boolean)}.
+ * If a <code>snapshotFile</code> is configured, every published snapshot is
+ * written to it, together with the overrides, by
+ * {@link FeatureToggleSnapshotFile}. On start up the file is read back, so the
+ * node serves the last published snapshot straight away and keeps its
+ * overrides, while the configured feature toggles are evaluated in the
+ * background and published in its place.
  * </p>
  * 
  * @author Vihung Marathe
  */
-public class FeatureToggleServiceImpl extends GenericService implements FeatureToggleService {
-    /** The local cache of (featureName --&gt; featureToggle) */
-    private final Map<String, Boolean> mFeatureCache = new HashMap<String, Boolean>();
+public class FeatureToggleServiceImpl extends GenericService implements VersionedFeatureToggleService {
+    /** The current snapshot of (featureName --&gt; featureToggle) */
+    private volatile FeatureToggleSnapshot mSnapshot = FeatureToggleSnapshot.EMPTY;
+
+    /** The compiled feature toggles, or <code>null</code> if they need compiling */
+    private FeatureToggleProgram mProgram;
+
+    /** The timer wheel that publishes scheduled values, created when first needed */
+    private HashedTimerWheel mTimerWheel;
+
+    /** The runtime overrides of (featureName --&gt; featureToggle) */
+    private final Map<String, Boolean> mOverrides = new HashMap<String, Boolean>();
+
+    /** The time of the next scheduled value that the timer wheel will publish */
+    private long mScheduledBoundary = Long.MAX_VALUE;
+
+    /** The task that will publish the snapshot at the scheduled boundary, if any */
+    private HashedTimerWheel.Timeout mScheduledTimeout;
 
     /**
      * A local cache of all queries made - useful for determining whether any
      * features need to be added to the list
      */
-    private final Set<String> mQueries = new HashSet<String>();
+    private final Set<String> mQueries = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Default Constructor. Delegates to <code>super()</code>.
@@ -74,6 +119,82 @@ public class FeatureToggleServiceImpl extends GenericService implements FeatureT
         super();
     }
 
+    /**
+     * Publish the first snapshot. If a persisted snapshot is restored, it is
+     * served straight away, and the configured feature toggles are evaluated
+     * and published in the background, on the next tick of the timer wheel.
+     * 
+     * @see atg.nucleus.GenericService#doStartService()
+     */
+    @Override
+    public synchronized void doStartService() throws ServiceException {
+        if (restoreSnapshot()) {
+            getTimerWheel().schedule(System.currentTimeMillis(), new Runnable() {
+                public void run() {
+                    replaceRestoredSnapshot();
+                }
+            });
+        } else {
+            publishSnapshot();
+        }
+    }
+
+    /**
+     * Read the snapshot file, if there is one, and serve its snapshot until
+     * the configured feature toggles are published. Its overrides are merged
+     * into the current overrides - an override set before start up takes
+     * precedence over a persisted one.
+     * 
+     * @return <code>true</code> if a snapshot was restored
+     */
+    private boolean restoreSnapshot() {
+        final File file = getSnapshotFileAsFile();
+        if (file == null || !file.isFile()) return false;
+
+        final FeatureToggleSnapshotFile snapshotFile;
+        try {
+            snapshotFile = FeatureToggleSnapshotFile.read(file);
+        } catch (IOException e) {
+            if (isLoggingWarning()) logWarning("Could not restore feature toggles from " + file.getAbsolutePath() + " - starting cold", e);
+            return false;
+        }
+
+        for (Map.Entry<String, Boolean> override : snapshotFile.getOverrides().entrySet()) {
+            if (!mOverrides.containsKey(override.getKey())) mOverrides.put(override.getKey(), override.getValue());
+        }
+        mSnapshot = snapshotFile.getSnapshot();
+        if (isLoggingInfo()) logInfo("restoreSnapshot(): Restored snapshot=" + mSnapshot + ", overrides=" + mOverrides + " from " + file.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * Publish the configured feature toggles in place of a restored snapshot
+     */
+    private synchronized void replaceRestoredSnapshot() {
+        // Stopped before it ran
+        if (mTimerWheel == null) return;
+        try {
+            publishSnapshot();
+        } catch (RuntimeException e) {
+            logError("Could not publish feature toggles after restoring " + getSnapshotFileAsFile().getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Stop the timer wheel
+     * 
+     * @see atg.nucleus.GenericService#doStopService()
+     */
+    @Override
+    public synchronized void doStopService() throws ServiceException {
+        if (mTimerWheel != null) {
+            mTimerWheel.stop();
+            mTimerWheel = null;
+        }
+        mScheduledBoundary = Long.MAX_VALUE;
+        mScheduledTimeout = null;
+    }
+
     /**
      * @see FeatureToggleService#isFeatureToggled(java.lang.String)
      */
@@ -81,93 +202,160 @@ public class FeatureToggleServiceImpl extends GenericService implements FeatureT
         if (isLoggingDebug()) logDebug("isFeatureToggled(): Invoked. pFeature=" + pFeature);
         logFeatureToggleQuery(pFeature);
 
-        // The value to return
-        final boolean featureToggle;
+        final boolean featureToggle = mSnapshot.isFeatureToggled(pFeature);
 
-        // see if we have cached the result of this query before?
+        final FeatureToggleExposureLog exposureLog = mExposureLog;
+        if (exposureLog != null) exposureLog.recordExposure(pFeature, featureToggle);
 
-        final Boolean cachedValue = getCachedFeatureToggle(pFeature);
-        if (isLoggingDebug()) logDebug("isFeatureToggled(): cachedValue=" + cachedValue);
+        if (isLoggingDebug()) logDebug("isFeatureToggled(): Returning featureToggle=" + featureToggle);
+        return featureToggle;
+    }
 
-        if (cachedValue != null) {
-            // get the cached value
-            featureToggle = cachedValue.booleanValue();
-            if (isLoggingDebug()) logDebug("isFeatureToggled(): Cached featureToggle=" + featureToggle);
-        } else {
-            // determine from the configured values
-            featureToggle = loadFeatureToggle(pFeature);
-            if (isLoggingDebug()) logDebug("isFeatureToggled(): Loaded featureToggle=" + featureToggle);
-            // cache the value
-            saveCachedFeatureToggle(pFeature, Boolean.valueOf(featureToggle));
+    /**
+     * Evaluate the configured feature toggles, compiling them first if needed,
+     * and publish the result as the current snapshot
+     */
+    protected synchronized void publishSnapshot() {
+        if (mProgram == null) {
+            mProgram = FeatureToggleProgram.compile(mFeatureToggles);
+            for (String error : mProgram.getErrors()) {
+                logError(error);
+            }
         }
 
-        if (isLoggingDebug()) logDebug("isFeatureToggled(): Returning featureToggle=" + featureToggle);
-        return featureToggle;
+        final long now = System.currentTimeMillis();
+        final FeatureToggleSnapshot snapshot = mSnapshot.next(mProgram.evaluate(now, mOverrides));
+        mSnapshot = snapshot;
+        if (isLoggingDebug()) logDebug("publishSnapshot(): Published snapshot=" + snapshot);
+
+        persistSnapshot(snapshot);
+        scheduleNextBoundary(now);
     }
 
     /**
-     * Load the feature toggle value for a given feature from the configured
-     * properties
+     * Write a snapshot, and the current overrides, to the snapshot file, if
+     * one is configured
      * 
-     * @param pFeature
-     *            the feature
-     * @return <code>true</code> if on, <code>false</code> if explicitly off, or
-     *         if not specified
-     */
-    private boolean loadFeatureToggle(final String pFeature) {
-        if (isLoggingDebug()) logDebug("loadFeatureToggle(): Invoked. pFeature=" + pFeature);
-        final boolean featureToggle;
-
-        final String featureToggleValue = mFeatureToggles.getProperty(pFeature);
-        if (isLoggingDebug()) logDebug("loadFeatureToggle(): featureToggleValue=" + featureToggleValue);
-
-        // is a value defined?
-        if (StringUtils.isEmpty(featureToggleValue)) {
-            // not defined, so default to false
-            featureToggle = false;
-            if (isLoggingDebug()) logDebug("loadFeatureToggle(): Value not defined. featureToggle=" + featureToggle);
-        } else {
-            // it is defined, so convert to a boolean
-            featureToggle = Boolean.parseBoolean(featureToggleValue);
-            if (isLoggingDebug()) logDebug("loadFeatureToggle(): Value defined. Parsed featureToggle=" + featureToggle);
-        }
+     * @param pSnapshot
+     *            the snapshot just published
+     */
+    private void persistSnapshot(final FeatureToggleSnapshot pSnapshot) {
+        final File file = getSnapshotFileAsFile();
+        if (file == null) return;
 
-        if (isLoggingDebug()) logDebug("loadFeatureToggle(): Returning featureToggle=" + featureToggle);
-        return featureToggle;
+        try {
+            FeatureToggleSnapshotFile.write(file, pSnapshot, mOverrides);
+        } catch (IOException e) {
+            logError("Could not write feature toggles to " + file.getAbsolutePath(), e);
+        }
     }
 
     /**
-     * Log the query to the local list of all queries
+     * Override a feature toggle at runtime, in place of its configured value.
+     * Feature toggles that refer to it see the overridden value. The override
+     * is kept across restarts if a <code>snapshotFile</code> is configured.
      * 
      * @param pFeature
      *            the feature name
+     * @param pFeatureToggle
+     *            the value to override it with
      */
-    private void logFeatureToggleQuery(final String pFeature) {
-        if (isLoggingDebug()) logDebug("logFeatureToggleQuery(): Invoked. Adding pFeature=" + pFeature);
-        mQueries.add(pFeature);
+    public void overrideFeatureToggle(final String pFeature, final boolean pFeatureToggle) {
+        synchronized (this) {
+            mOverrides.put(pFeature, Boolean.valueOf(pFeatureToggle));
+        }
+        if (isLoggingInfo()) logInfo("overrideFeatureToggle(): Overrode " + pFeature + "=" + pFeatureToggle);
+        if (isRunning()) publishSnapshot();
     }
 
     /**
-     * Get the cached feature toggle value
+     * Remove the runtime override of a feature toggle, if any, so that its
+     * configured value applies again
      * 
      * @param pFeature
      *            the feature name
-     * @return Boolean representing the toggle, or <code>null</code> if not
-     *         cached
      */
-    private Boolean getCachedFeatureToggle(String pFeature) {
-        return mFeatureCache.get(pFeature);
+    public void removeFeatureToggleOverride(final String pFeature) {
+        synchronized (this) {
+            if (mOverrides.remove(pFeature) == null) return;
+        }
+        if (isLoggingInfo()) logInfo("removeFeatureToggleOverride(): Removed override of " + pFeature);
+        if (isRunning()) publishSnapshot();
+    }
+
+    /**
+     * Remove all runtime overrides, so that the configured values apply again
+     */
+    public void clearOverrides() {
+        synchronized (this) {
+            mOverrides.clear();
+        }
+        if (isRunning()) publishSnapshot();
+    }
+
+    /**
+     * Schedule a snapshot to be published when the next scheduled value takes
+     * effect, unless one already is
+     * 
+     * @param pNow
+     *            the current time
+     */
+    private void scheduleNextBoundary(final long pNow) {
+        final long boundary = mProgram.nextBoundary(pNow);
+        if (boundary == Long.MAX_VALUE || boundary == mScheduledBoundary) return;
+
+        if (isLoggingDebug()) logDebug("scheduleNextBoundary(): Scheduling snapshot at " + new Date(boundary));
+
+        // The configuration changed, so that the boundary already scheduled is no longer the next
+        if (mScheduledTimeout != null) mScheduledTimeout.cancel();
+
+        mScheduledBoundary = boundary;
+        mScheduledTimeout = getTimerWheel().schedule(boundary, new Runnable() {
+            public void run() {
+                publishScheduledSnapshot(boundary);
+            }
+        });
+    }
+
+    /**
+     * @return the timer wheel, started when first needed
+     */
+    private HashedTimerWheel getTimerWheel() {
+        if (mTimerWheel == null) {
+            mTimerWheel = new HashedTimerWheel(getTimerTickMillis(), getTimerWheelSize(), "FeatureToggles-" + getAbsoluteName());
+            mTimerWheel.start();
+        }
+        return mTimerWheel;
     }
 
     /**
-     * Save the loaded value to a local cache
+     * Publish a snapshot because a scheduled value has taken effect
+     * 
+     * @param pBoundary
+     *            the time the scheduled value took effect
+     */
+    private synchronized void publishScheduledSnapshot(final long pBoundary) {
+        if (!isRunning()) return;
+        if (pBoundary == mScheduledBoundary) {
+            mScheduledBoundary = Long.MAX_VALUE;
+            mScheduledTimeout = null;
+        }
+        try {
+            publishSnapshot();
+        } catch (RuntimeException e) {
+            logError("Could not publish scheduled feature toggles", e);
+        }
+    }
+
+    /**
+     * Log the query to the local list of all queries
      * 
      * @param pFeature
      *            the feature name
-     * @param pFeatureToggleValue
      */
-    private void saveCachedFeatureToggle(String pFeature, Boolean pFeatureToggleValue) {
-        mFeatureCache.put(pFeature, pFeatureToggleValue);
+    private void logFeatureToggleQuery(final String pFeature) {
+        if (isLoggingDebug()) logDebug("logFeatureToggleQuery(): Invoked. Adding pFeature=" + pFeature);
+        mQueries.add(pFeature);
     }
 
     /**
@@ -185,13 +373,157 @@ public class FeatureToggleServiceImpl extends GenericService implements FeatureT
     }
 
     /**
-     * Modifier method for the <code>featureToggles</code> property
+     * Modifier method for the <code>featureToggles</code> property. If the
+     * service is running, the new values are compiled and published straight
+     * away.
      * 
      * @param pFeatureToggles
      *            - the <code>featureToggles</code> property to set
      */
     public void setFeatureToggles(Properties pFeatureToggles) {
-        mFeatureToggles = pFeatureToggles;
+        synchronized (this) {
+            mFeatureToggles = pFeatureToggles;
+            mProgram = null;
+        }
+        if (isRunning()) publishSnapshot();
+    }
+
+    /**
+     * Accessor method for the <code>features</code> property - the name used
+     * in configuration for the <code>featureToggles</code> property
+     * 
+     * @return the <code>features</code> property
+     */
+    public Properties getFeatures() {
+        return getFeatureToggles();
+    }
+
+    /**
+     * Modifier method for the <code>features</code> property - the name used
+     * in configuration for the <code>featureToggles</code> property
+     * 
+     * @param pFeatures
+     *            - the <code>features</code> property to set
+     */
+    public void setFeatures(Properties pFeatures) {
+        setFeatureToggles(pFeatures);
+    }
+
+    /**
+     * The log of feature toggle exposures, or <code>null</code> if exposures
+     * are not logged
+     */
+    private volatile FeatureToggleExposureLog mExposureLog;
+
+    /**
+     * Accessor method for the <code>exposureLog</code> property
+     * 
+     * @return the <code>exposureLog</code> property
+     */
+    public FeatureToggleExposureLog getExposureLog() {
+        return mExposureLog;
+    }
+
+    /**
+     * Modifier method for the <code>exposureLog</code> property
+     * 
+     * @param pExposureLog
+     *            - the <code>exposureLog</code> property to set
+     */
+    public void setExposureLog(FeatureToggleExposureLog pExposureLog) {
+        mExposureLog = pExposureLog;
+    }
+
+    /**
+     * Accessor method for the runtime overrides of feature toggles
+     * 
+     * @return a copy of the map of (featureName --&gt; featureToggle) overrides
+     */
+    public synchronized Map<String, Boolean> getOverrides() {
+        return new HashMap<String, Boolean>(mOverrides);
+    }
+
+    /**
+     * The path of the file that published snapshots are persisted to, or
+     * <code>null</code> if they are not persisted
+     */
+    private String mSnapshotFile;
+
+    /**
+     * Accessor method for the <code>snapshotFile</code> property
+     * 
+     * @return the <code>snapshotFile</code> property
+     */
+    public String getSnapshotFile() {
+        return mSnapshotFile;
+    }
+
+    /**
+     * Modifier method for the <code>snapshotFile</code> property
+     * 
+     * @param pSnapshotFile
+     *            - the <code>snapshotFile</code> property to set
+     */
+    public void setSnapshotFile(String pSnapshotFile) {
+        mSnapshotFile = pSnapshotFile;
+    }
+
+    private File getSnapshotFileAsFile() {
+        final String snapshotFile = getSnapshotFile();
+        return snapshotFile == null || snapshotFile.trim().length() == 0 ? null : new File(snapshotFile.trim());
+    }
+
+    /** The length of a tick of the timer wheel, in milliseconds */
+    private long mTimerTickMillis = 1000;
+
+    /**
+     * Accessor method for the <code>timerTickMillis</code> property - the
+     * length of a tick of the timer wheel, which is how late a scheduled value
+     * may take effect
+     * 
+     * @return the <code>timerTickMillis</code> property
+     */
+    public long getTimerTickMillis() {
+        return mTimerTickMillis;
+    }
+
+    /**
+     * Modifier method for the <code>timerTickMillis</code> property
+     * 
+     * @param pTimerTickMillis
+     *            - the <code>timerTickMillis</code> property to set
+     */
+    public void setTimerTickMillis(long pTimerTickMillis) {
+        mTimerTickMillis = pTimerTickMillis;
+    }
+
+    /** The number of buckets in the timer wheel */
+    private int mTimerWheelSize = 512;
+
+    /**
+     * Accessor method for the <code>timerWheelSize</code> property
+     * 
+     * @return the <code>timerWheelSize</code> property
+     */
+    public int getTimerWheelSize() {
+        return mTimerWheelSize;
+    }
+
+    /**
+     * Modifier method for the <code>timerWheelSize</code> property
+     * 
+     * @param pTimerWheelSize
+     *            - the <code>timerWheelSize</code> property to set
+     */
+    public void setTimerWheelSize(int pTimerWheelSize) {
+        mTimerWheelSize = pTimerWheelSize;
+    }
+
+    /**
+     * @see VersionedFeatureToggleService#getSnapshot()
+     */
+    public FeatureToggleSnapshot getSnapshot() {
+        return mSnapshot;
     }
 
     /**
@@ -205,9 +537,13 @@ public class FeatureToggleServiceImpl extends GenericService implements FeatureT
     }
 
     /**
-     * Clear the cache
+     * Clear the cache - recompile the configured feature toggles, in case they
+     * have been modified in place, and publish a new snapshot
      */
     public void clearCache() {
-        mFeatureCache.clear();
+        synchronized (this) {
+            mProgram = null;
+        }
+        publishSnapshot();
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the values of all configured feature toggles,
+ * including compound toggles, which are evaluated when the snapshot is
+ * published.
+ * 
+ * Each published snapshot has a higher version than the one before it. Each
+ * feature also has a version - that of the snapshot in which its value last
+ * changed - so that anything derived from a single feature toggle, such as
+ * cached page fragments, need only be discarded when that feature changes.
+ * 
+ * @author Vihung Marathe
+ */
+public final class FeatureToggleSnapshot {
+    /** The snapshot before any has been published - every feature is off */
+    public static final FeatureToggleSnapshot EMPTY = new FeatureToggleSnapshot(0, Collections.<String, Boolean> emptyMap());
+
+    private final long mVersion;
+
+    /** The map of (featureName --&gt; featureToggle) */
+    private final Map<String, Boolean> mFeatureToggles;
+
+    /** The map of (featureName --&gt; version of the snapshot it last changed in) */
+    private final Map<String, Long> mFeatureVersions;
+
+    /**
+     * Constructor. Every feature has the version of the snapshot.
+     * 
+     * @param pVersion
+     *            the version of the snapshot
+     * @param pFeatureToggles
+     *            the map of (featureName --&gt; featureToggle). Copied.
+     */
+    public FeatureToggleSnapshot(final long pVersion, final Map<String, Boolean> pFeatureToggles) {
+        super();
+        mVersion = pVersion;
+        mFeatureToggles = Collections.unmodifiableMap(new HashMap<String, Boolean>(pFeatureToggles));
+        final Long version = Long.valueOf(pVersion);
+        mFeatureVersions = new HashMap<String, Long>();
+        for (String feature : mFeatureToggles.keySet()) {
+            mFeatureVersions.put(feature, version);
+        }
+    }
+
+    private FeatureToggleSnapshot(final long pVersion, final Map<String, Boolean> pFeatureToggles, final Map<String, Long> pFeatureVersions) {
+        super();
+        mVersion = pVersion;
+        mFeatureToggles = Collections.unmodifiableMap(new HashMap<String, Boolean>(pFeatureToggles));
+        mFeatureVersions = pFeatureVersions;
+    }
+
+    /**
+     * Create the snapshot that follows this one. Features whose value is
+     * unchanged keep their version, the others take the version of the new
+     * snapshot.
+     * 
+     * @param pFeatureToggles
+     *            the map of (featureName --&gt; featureToggle). Copied.
+     * @return the next snapshot
+     */
+    public FeatureToggleSnapshot next(final Map<String, Boolean> pFeatureToggles) {
+        final long version = mVersion + 1;
+        final Long changedVersion = Long.valueOf(version);
+        final Map<String, Long> featureVersions = new HashMap<String, Long>();
+        for (Map.Entry<String, Boolean> featureToggle : pFeatureToggles.entrySet()) {
+            final String feature = featureToggle.getKey();
+            final Long featureVersion = mFeatureVersions.get(feature);
+            final boolean changed = featureVersion == null || isFeatureToggled(feature) != featureToggle.getValue().booleanValue();
+            featureVersions.put(feature, changed ? changedVersion : featureVersion);
+        }
+        for (String feature : mFeatureToggles.keySet()) {
+            // a feature that is no longer configured is off
+            if (!pFeatureToggles.containsKey(feature) && isFeatureToggled(feature)) featureVersions.put(feature, changedVersion);
+        }
+        return new FeatureToggleSnapshot(version, pFeatureToggles, featureVersions);
+    }
+
+    /**
+     * Determine the value of the feature toggle for the given feature.
+     * 
+     * @param pFeature
+     *            the feature
+     * @return the feature toggle - <code>true</code> if on, <code>false</code>
+     *         if off or unspecified.
+     */
+    public boolean isFeatureToggled(final String pFeature) {
+        return Boolean.TRUE.equals(mFeatureToggles.get(pFeature));
+    }
+
+    /**
+     * @return the version of the snapshot
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Determine the version of the given feature - the version of the snapshot
+     * in which its value last changed.
+     * 
+     * @param pFeature
+     *            the feature
+     * @return the version of the feature, or <code>0</code> if it has never
+     *         been configured, or has been off since it stopped being
+     */
+    public long getFeatureVersion(final String pFeature) {
+        final Long featureVersion = mFeatureVersions.get(pFeature);
+        return featureVersion == null ? 0 : featureVersion.longValue();
+    }
+
+    /**
+     * @return the unmodifiable map of (featureName --&gt; featureToggle)
+     */
+    public Map<String, Boolean> getFeatureToggles() {
+        return mFeatureToggles;
+    }
+
+    @Override
+    public String toString() {
+        return "FeatureToggleSnapshot[version=" + mVersion + ", featureToggles=" + mFeatureToggles + "]";
+    }
+}
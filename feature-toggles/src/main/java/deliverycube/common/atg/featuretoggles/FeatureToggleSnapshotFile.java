@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Persists a published {@link FeatureToggleSnapshot}, and any runtime
+ * overrides, to a compact binary file, so that a node can start warm and keep
+ * its overrides across restarts.
+ * </p>
+ * 
+ * <p>
+ * The file format is
+ * 
+ * <pre>
+ * int      magic number, 'DCFT'
+ * int      format version, 1
+ * long     snapshot version
+ * long     time written, in wall clock millis
+ * int      number of feature toggles, then for each
+ *   int      length of the name in bytes
+ *   byte[]   name, UTF-8
+ *   byte     value, 0 or 1
+ * int      number of overrides, then for each, as for feature toggles
+ * long     CRC-32 of everything before it
+ * </pre>
+ * 
+ * The file is replaced atomically - written to a temporary file then renamed.
+ * It is only a few kilobytes, so it is read in one go.
+ * </p>
+ * 
+ * @author Vihung Marathe
+ */
+final class FeatureToggleSnapshotFile {
+    /** 'DCFT' */
+    private static final int MAGIC = 0x44434654;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String ENCODING = "UTF-8";
+
+    /** The snapshot read from the file */
+    private final FeatureToggleSnapshot mSnapshot;
+
+    /** The overrides read from the file */
+    private final Map<String, Boolean> mOverrides;
+
+    private FeatureToggleSnapshotFile(final FeatureToggleSnapshot pSnapshot, final Map<String, Boolean> pOverrides) {
+        mSnapshot = pSnapshot;
+        mOverrides = pOverrides;
+    }
+
+    /**
+     * Write a snapshot and overrides to a file, replacing it atomically.
+     * 
+     * @param pFile
+     *            the file
+     * @param pSnapshot
+     *            the snapshot
+     * @param pOverrides
+     *            the map of (featureName --&gt; featureToggle) overrides
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    static void write(final File pFile, final FeatureToggleSnapshot pSnapshot, final Map<String, Boolean> pOverrides) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(pSnapshot.getVersion());
+        out.writeLong(System.currentTimeMillis());
+        writeFeatureToggles(out, pSnapshot.getFeatureToggles());
+        writeFeatureToggles(out, pOverrides);
+        out.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        final File directory = pFile.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+
+        final File tempFile = new File(pFile.getPath() + ".tmp");
+        final FileOutputStream file = new FileOutputStream(tempFile);
+        try {
+            bytes.writeTo(file);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+
+        if (!tempFile.renameTo(pFile)) {
+            // some platforms cannot rename over an existing file
+            if (!pFile.delete() || !tempFile.renameTo(pFile)) {
+                throw new IOException("Could not replace " + pFile + " with " + tempFile);
+            }
+        }
+    }
+
+    private static void writeFeatureToggles(final DataOutputStream pOut, final Map<String, Boolean> pFeatureToggles) throws IOException {
+        pOut.writeInt(pFeatureToggles.size());
+        for (Map.Entry<String, Boolean> featureToggle : pFeatureToggles.entrySet()) {
+            final byte[] name = featureToggle.getKey().getBytes(ENCODING);
+            pOut.writeInt(name.length);
+            pOut.write(name);
+            pOut.writeByte(featureToggle.getValue().booleanValue() ? 1 : 0);
+        }
+    }
+
+    /**
+     * Read a snapshot and overrides from a file.
+     * 
+     * @param pFile
+     *            the file
+     * @return the contents of the file
+     * @throws IOException
+     *             if the file cannot be read, or is not a valid snapshot file
+     */
+    static FeatureToggleSnapshotFile read(final File pFile) throws IOException {
+        final byte[] contents;
+        final RandomAccessFile file = new RandomAccessFile(pFile, "r");
+        try {
+            final long size = file.length();
+            if (size < 36 || size > Integer.MAX_VALUE) throw new IOException(pFile + " is not a feature toggle snapshot file - size " + size);
+            contents = new byte[(int) size];
+            file.readFully(contents);
+        } finally {
+            file.close();
+        }
+
+        final ByteBuffer data = ByteBuffer.wrap(contents);
+        if (data.getInt(0) != MAGIC) throw new IOException(pFile + " is not a feature toggle snapshot file");
+        if (data.getInt(4) != FORMAT_VERSION) throw new IOException(pFile + " has unsupported format version " + data.getInt(4));
+
+        final int checksumPosition = contents.length - 8;
+        final CRC32 crc = new CRC32();
+        crc.update(contents, 0, checksumPosition);
+        if (crc.getValue() != data.getLong(checksumPosition)) throw new IOException(pFile + " is corrupt - checksum does not match");
+
+        data.position(8);
+        data.limit(checksumPosition);
+        try {
+            final long version = data.getLong();
+            data.getLong(); // time written
+            final Map<String, Boolean> featureToggles = readFeatureToggles(data);
+            final Map<String, Boolean> overrides = readFeatureToggles(data);
+            return new FeatureToggleSnapshotFile(new FeatureToggleSnapshot(version, featureToggles), overrides);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(pFile + " is corrupt - truncated");
+        }
+    }
+
+    private static Map<String, Boolean> readFeatureToggles(final ByteBuffer pData) throws IOException {
+        final int count = pData.getInt();
+        if (count < 0) throw new IOException("negative count " + count);
+
+        final Map<String, Boolean> featureToggles = new HashMap<String, Boolean>();
+        for (int i = 0; i < count; i++) {
+            final int length = pData.getInt();
+            if (length < 0 || length > pData.remaining()) throw new IOException("invalid name length " + length);
+            final byte[] name = new byte[length];
+            pData.get(name);
+            featureToggles.put(new String(name, ENCODING), Boolean.valueOf(pData.get() != 0));
+        }
+        return featureToggles;
+    }
+
+    /**
+     * @return the snapshot read from the file
+     */
+    FeatureToggleSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return the map of (featureName --&gt; featureToggle) overrides read from
+     *         the file
+     */
+    Map<String, Boolean> getOverrides() {
+        return mOverrides;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Least-recently-used cache of rendered page fragments, bounded by the total
+ * size of the fragments rather than their number.
+ * </p>
+ * 
+ * <p>
+ * Each fragment is rendered for a single feature toggle, and records the
+ * version of the feature it was rendered for, so that fragments can be
+ * discarded as soon as a snapshot is published in which that feature has
+ * changed. All methods are synchronized - the work done under the lock is a
+ * map lookup or insertion.
+ * </p>
+ * 
+ * @author Vihung Marathe
+ */
+final class FragmentCache {
+    /** Rough per-entry overhead, in bytes, of the map entry, key and fragment */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * A cached fragment
+     */
+    static final class Fragment {
+        final String mFeature;
+
+        final long mFeatureVersion;
+
+        final byte[] mContent;
+
+        final int mSize;
+
+        Fragment(final String pKey, final String pFeature, final long pFeatureVersion, final byte[] pContent) {
+            mFeature = pFeature;
+            mFeatureVersion = pFeatureVersion;
+            mContent = pContent;
+            mSize = pContent.length + 2 * pKey.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /** The fragments, by key, in order of access */
+    private final LinkedHashMap<String, Fragment> mFragments = new LinkedHashMap<String, Fragment>(64, 0.75f, true);
+
+    /** The maximum total size of the fragments, in bytes */
+    private final long mMaxSize;
+
+    /** The total size of the fragments, in bytes */
+    private long mSize;
+
+    /** The snapshot version the fragments were last checked against */
+    private long mSnapshotVersion = -1;
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private long mEvictionCount;
+
+    /**
+     * Constructor.
+     * 
+     * @param pMaxSize
+     *            the maximum total size of the fragments, in bytes
+     */
+    FragmentCache(final long pMaxSize) {
+        mMaxSize = pMaxSize;
+    }
+
+    /**
+     * Look up a fragment
+     * 
+     * @param pKey
+     *            the key
+     * @return the content of the fragment, or <code>null</code> if not cached
+     */
+    synchronized byte[] get(final String pKey) {
+        final Fragment fragment = mFragments.get(pKey);
+        if (fragment == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return fragment.mContent;
+    }
+
+    /**
+     * Cache a fragment, evicting the least recently used fragments to make
+     * room for it. A fragment larger than the whole cache is not cached.
+     * 
+     * @param pKey
+     *            the key
+     * @param pFragment
+     *            the fragment
+     */
+    synchronized void put(final String pKey, final Fragment pFragment) {
+        if (pFragment.mSize > mMaxSize) return;
+
+        final Fragment replaced = mFragments.put(pKey, pFragment);
+        if (replaced != null) mSize -= replaced.mSize;
+        mSize += pFragment.mSize;
+
+        for (final Iterator<Fragment> i = mFragments.values().iterator(); mSize > mMaxSize && i.hasNext();) {
+            final Fragment eldest = i.next();
+            i.remove();
+            mSize -= eldest.mSize;
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Discard the fragments rendered for a feature that has changed since,
+     * unless they have already been checked against the snapshot
+     * 
+     * @param pSnapshot
+     *            the current snapshot
+     * @return the number of fragments discarded
+     */
+    synchronized int invalidate(final FeatureToggleSnapshot pSnapshot) {
+        if (pSnapshot.getVersion() == mSnapshotVersion) return 0;
+        mSnapshotVersion = pSnapshot.getVersion();
+
+        int invalidated = 0;
+        for (final Iterator<Fragment> i = mFragments.values().iterator(); i.hasNext();) {
+            final Fragment fragment = i.next();
+            if (fragment.mFeatureVersion != pSnapshot.getFeatureVersion(fragment.mFeature)) {
+                i.remove();
+                mSize -= fragment.mSize;
+                invalidated++;
+            }
+        }
+        return invalidated;
+    }
+
+    /**
+     * Discard all fragments
+     */
+    synchronized void clear() {
+        mFragments.clear();
+        mSize = 0;
+    }
+
+    synchronized int getFragmentCount() {
+        return mFragments.size();
+    }
+
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+}
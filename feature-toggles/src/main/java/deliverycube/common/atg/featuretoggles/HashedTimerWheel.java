@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Hashed timer wheel - runs tasks at, or shortly after, given wall clock times.
+ * </p>
+ * 
+ * <p>
+ * Time is divided into ticks. The wheel has a fixed number of buckets, and a
+ * task is placed in the bucket for the tick of its deadline, modulo the number
+ * of buckets, with a count of the whole turns of the wheel still to go. A
+ * single background thread advances the wheel one tick at a time and runs the
+ * due tasks of the current bucket, so a task runs no later than one tick after
+ * its deadline. Scheduling only appends to a lock-free queue. A scheduled
+ * task can be cancelled, and is then discarded when its bucket is next
+ * processed.
+ * </p>
+ * 
+ * @author Vihung Marathe
+ */
+final class HashedTimerWheel {
+
+    /**
+     * A scheduled task
+     */
+    static final class Timeout {
+        final long mDeadline;
+
+        final Runnable mTask;
+
+        long mRounds;
+
+        private volatile boolean mCancelled;
+
+        Timeout(final long pDeadline, final Runnable pTask) {
+            mDeadline = pDeadline;
+            mTask = pTask;
+        }
+
+        /**
+         * Stop the task from running, unless it already has started. Safe to
+         * call from any thread.
+         */
+        void cancel() {
+            mCancelled = true;
+        }
+
+        /**
+         * @return whether the task has been cancelled
+         */
+        boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final long mTickMillis;
+
+    private final List<Timeout>[] mBuckets;
+
+    private final int mMask;
+
+    /** Tasks scheduled, but not yet placed in a bucket */
+    private final Queue<Timeout> mPending = new ConcurrentLinkedQueue<Timeout>();
+
+    private final Thread mWorker;
+
+    private volatile boolean mRunning;
+
+    /** When the wheel started, in wall clock millis */
+    private long mStartTime;
+
+    /** The number of ticks processed so far. Only used by the worker thread. */
+    private long mTick;
+
+    /**
+     * Constructor.
+     * 
+     * @param pTickMillis
+     *            the length of a tick, in milliseconds
+     * @param pBucketCount
+     *            the minimum number of buckets, rounded up to a power of two
+     * @param pThreadName
+     *            the name of the background thread
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    HashedTimerWheel(final long pTickMillis, final int pBucketCount, final String pThreadName) {
+        int bucketCount = 1;
+        while (bucketCount < pBucketCount) {
+            bucketCount <<= 1;
+        }
+        mTickMillis = Math.max(1, pTickMillis);
+        mMask = bucketCount - 1;
+        mBuckets = new List[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            mBuckets[i] = new ArrayList<Timeout>();
+        }
+
+        mWorker = new Thread(new Runnable() {
+            public void run() {
+                work();
+            }
+        }, pThreadName);
+        mWorker.setDaemon(true);
+    }
+
+    /**
+     * Start the background thread
+     */
+    void start() {
+        mStartTime = System.currentTimeMillis();
+        mRunning = true;
+        mWorker.start();
+    }
+
+    /**
+     * Stop the background thread. Tasks not yet run are discarded.
+     */
+    void stop() {
+        mRunning = false;
+        LockSupport.unpark(mWorker);
+    }
+
+    /**
+     * Schedule a task to run on the background thread at, or shortly after,
+     * the given time. Safe to call from any thread, including from a task.
+     * 
+     * @param pDeadline
+     *            the wall clock time, in millis
+     * @param pTask
+     *            the task
+     * @return the scheduled task, to cancel it with
+     */
+    Timeout schedule(final long pDeadline, final Runnable pTask) {
+        final Timeout timeout = new Timeout(pDeadline, pTask);
+        mPending.add(timeout);
+        return timeout;
+    }
+
+    private void work() {
+        while (mRunning) {
+            // Wait for the end of the current tick
+            final long tickEnd = mStartTime + (mTick + 1) * mTickMillis;
+            long now = System.currentTimeMillis();
+            while (mRunning && now < tickEnd) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(tickEnd - now));
+                now = System.currentTimeMillis();
+            }
+            if (!mRunning) break;
+
+            transferPending();
+            expire(mBuckets[(int) (mTick & mMask)], now);
+            mTick++;
+        }
+    }
+
+    /**
+     * Place newly scheduled tasks in their buckets
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = mPending.poll()) != null) {
+            if (timeout.isCancelled()) continue;
+
+            // the tick by the end of which the task is due, but never one already processed
+            final long dueTick = Math.max(mTick, (timeout.mDeadline - mStartTime + mTickMillis - 1) / mTickMillis - 1);
+            timeout.mRounds = (dueTick - mTick) / mBuckets.length;
+            mBuckets[(int) (dueTick & mMask)].add(timeout);
+        }
+    }
+
+    /**
+     * Run the due tasks of a bucket, and count down the rounds of the rest
+     */
+    private void expire(final List<Timeout> pBucket, final long pNow) {
+        List<Timeout> due = null;
+        for (final Iterator<Timeout> i = pBucket.iterator(); i.hasNext();) {
+            final Timeout timeout = i.next();
+            if (timeout.isCancelled()) {
+                i.remove();
+            } else if (timeout.mRounds <= 0 && timeout.mDeadline <= pNow) {
+                i.remove();
+                if (due == null) due = new ArrayList<Timeout>();
+                due.add(timeout);
+            } else if (timeout.mRounds > 0) {
+                timeout.mRounds--;
+            }
+        }
+        if (due == null) return;
+
+        for (Timeout timeout : due) {
+            // cancelled by an earlier task
+            if (timeout.isCancelled()) continue;
+            try {
+                timeout.mTask.run();
+            } catch (RuntimeException e) {
+                // report it, but keep the wheel turning
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+/**
+ * A {@link FeatureToggleService} that publishes its feature toggles as
+ * versioned {@link FeatureToggleSnapshot}s, so that consumers can tell when a
+ * feature toggle has changed
+ * 
+ * @author Vihung Marathe
+ */
+public interface VersionedFeatureToggleService extends FeatureToggleService {
+
+    /**
+     * Accessor method for the current snapshot of all feature toggles
+     * 
+     * @return the current snapshot
+     */
+    public abstract FeatureToggleSnapshot getSnapshot();
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import atg.nucleus.ServiceException;
+import atg.nucleus.naming.ParameterName;
+import atg.servlet.DynamoHttpServletRequest;
+import atg.servlet.DynamoHttpServletResponse;
+
+/**
+ * Tests for {@link CachingFeatureToggleDroplet}
+ * 
+ * @author Vihung Marathe
+ */
+public class CachingFeatureToggleDropletTest {
+    private CachingFeatureToggleDroplet mDroplet;
+
+    private PageResponse mResponse;
+
+    @Before
+    public void setUp() throws ServiceException {
+        final FeatureToggleSnapshot snapshot = new FeatureToggleSnapshot(1, Collections.singletonMap("checkout", Boolean.TRUE));
+        mDroplet = new CachingFeatureToggleDroplet();
+        mDroplet.setFeatureToggleService(new VersionedFeatureToggleService() {
+            public boolean isFeatureToggled(final String pFeature) {
+                return snapshot.isFeatureToggled(pFeature);
+            }
+
+            public FeatureToggleSnapshot getSnapshot() {
+                return snapshot;
+            }
+        });
+        mDroplet.doStartService();
+        mResponse = new PageResponse();
+    }
+
+    @Test
+    public void oparamWrittenThroughTheWriterIsCachedAndReplayed() throws ServletException, IOException {
+        final OparamRequest request = new OparamRequest() {
+            @Override
+            void render(final ServletResponse pResponse) throws IOException {
+                final PrintWriter writer = pResponse.getWriter();
+                writer.print("<p>new checkout</p>");
+            }
+        };
+
+        mDroplet.service(request, mResponse);
+        mDroplet.service(request, mResponse);
+
+        assertEquals("<p>new checkout</p><p>new checkout</p>", mResponse.getPage());
+        assertEquals(1, request.mRenderCount);
+        assertEquals(1, mDroplet.getCachedFragmentCount());
+        assertEquals(1, mDroplet.getMissCount());
+        assertEquals(1, mDroplet.getHitCount());
+        assertFalse(mResponse.mFlushed);
+        assertFalse(mResponse.mWriterUsed);
+    }
+
+    @Test
+    public void oparamWrittenToTheWriterAndTheOutputStreamKeepsItsOrder() throws ServletException, IOException {
+        final OparamRequest request = new OparamRequest() {
+            @Override
+            void render(final ServletResponse pResponse) throws IOException {
+                pResponse.getWriter().print("<p>");
+                pResponse.getOutputStream().write("new".getBytes("ISO-8859-1"));
+                pResponse.getWriter().print(" checkout</p>");
+            }
+        };
+
+        mDroplet.service(request, mResponse);
+        mDroplet.service(request, mResponse);
+
+        assertEquals("<p>new checkout</p><p>new checkout</p>", mResponse.getPage());
+        assertEquals(1, request.mRenderCount);
+    }
+
+    @Test
+    public void emptyOparamIsNotCached() throws ServletException, IOException {
+        final OparamRequest request = new OparamRequest() {
+            @Override
+            void render(final ServletResponse pResponse) {
+                // Nothing
+            }
+        };
+
+        mDroplet.service(request, mResponse);
+        mDroplet.service(request, mResponse);
+
+        assertEquals("", mResponse.getPage());
+        assertEquals(2, request.mRenderCount);
+        assertEquals(0, mDroplet.getCachedFragmentCount());
+    }
+
+    /**
+     * Request for the <code>checkout</code> feature, whose <code>OPARAM</code>s
+     * are rendered by {@link #render(ServletResponse)}
+     */
+    private abstract static class OparamRequest extends DynamoHttpServletRequest {
+        int mRenderCount;
+
+        @Override
+        public String getParameter(final ParameterName pName) {
+            return "checkout";
+        }
+
+        @Override
+        public boolean serviceLocalParameter(final ParameterName pName, final ServletRequest pRequest, final ServletResponse pResponse) throws IOException {
+            mRenderCount++;
+            render(pResponse);
+            return true;
+        }
+
+        abstract void render(ServletResponse pResponse) throws IOException;
+    }
+
+    /**
+     * Response for a page that is written to its output stream, as a page
+     * is by ATG, and that records whether it is flushed or its writer asked for
+     */
+    private static class PageResponse extends DynamoHttpServletResponse {
+        private final PageOutputStream mPage = new PageOutputStream();
+
+        private ServletOutputStream mOutputStream = mPage;
+
+        boolean mFlushed;
+
+        boolean mWriterUsed;
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        @Override
+        public void setOutputStream(final ServletOutputStream pOutputStream) {
+            mOutputStream = pOutputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            // The output stream is already in use
+            mWriterUsed = true;
+            throw new IllegalStateException("getOutputStream() has already been called");
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return "UTF-8";
+        }
+
+        @Override
+        public void flushBuffer() {
+            mFlushed = true;
+        }
+
+        String getPage() throws IOException {
+            return mPage.mBytes.toString("UTF-8");
+        }
+    }
+
+    private static class PageOutputStream extends ServletOutputStream {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(final int pByte) {
+            mBytes.write(pByte);
+        }
+    }
+}
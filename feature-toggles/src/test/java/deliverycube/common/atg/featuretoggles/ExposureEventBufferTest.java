@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ExposureEventBuffer}
+ * 
+ * @author Vihung Marathe
+ */
+public class ExposureEventBufferTest {
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new ExposureEventBuffer(5).getCapacity());
+        assertEquals(8, new ExposureEventBuffer(8).getCapacity());
+        assertEquals(1, new ExposureEventBuffer(1).getCapacity());
+    }
+
+    @Test
+    public void fullBufferDropsAndCounts() throws IOException {
+        final ExposureEventBuffer buffer = new ExposureEventBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i, "feature" + i, true, null));
+        }
+
+        assertFalse(buffer.offer(4, "feature4", true, null));
+        assertFalse(buffer.offer(5, "feature5", true, null));
+        assertEquals(2L, buffer.getDroppedCount());
+        assertEquals(4, buffer.size());
+
+        final RecordingHandler handler = new RecordingHandler();
+        assertEquals(4, buffer.drain(handler, 10));
+        assertEquals(Arrays.asList("feature0", "feature1", "feature2", "feature3"), handler.mFeatures);
+
+        // Draining frees the slots
+        assertTrue(buffer.offer(6, "feature6", false, null));
+        assertEquals(2L, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void eventsAreDrainedInOrder() throws IOException {
+        final ExposureEventBuffer buffer = new ExposureEventBuffer(4);
+        final RecordingHandler handler = new RecordingHandler();
+
+        // Wrap around the buffer several times, draining part of it each time
+        int offered = 0;
+        for (int round = 0; round < 5; round++) {
+            while (buffer.offer(offered, "feature" + offered, offered % 2 == 0, "visitor" + offered)) {
+                offered++;
+            }
+            buffer.drain(handler, 3);
+        }
+        buffer.drain(handler, Integer.MAX_VALUE);
+
+        assertEquals(offered, handler.mFeatures.size());
+        for (int i = 0; i < offered; i++) {
+            assertEquals(Long.valueOf(i), handler.mTimes.get(i));
+            assertEquals("feature" + i, handler.mFeatures.get(i));
+            assertEquals(Boolean.valueOf(i % 2 == 0), handler.mFeatureToggles.get(i));
+            assertEquals("visitor" + i, handler.mVisitorIds.get(i));
+        }
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void drainStopsAtMaxEvents() throws IOException {
+        final ExposureEventBuffer buffer = new ExposureEventBuffer(8);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i, "feature" + i, true, null);
+        }
+
+        final RecordingHandler handler = new RecordingHandler();
+        assertEquals(2, buffer.drain(handler, 2));
+        assertEquals(3, buffer.size());
+        assertEquals(3, buffer.drain(handler, 10));
+        assertEquals(0, buffer.drain(handler, 10));
+    }
+
+    @Test
+    public void eventsFromConcurrentProducersAreEachDrainedOnceInOrder() throws Exception {
+        final int producerCount = 4;
+        final int eventsPerProducer = 20000;
+        final ExposureEventBuffer buffer = new ExposureEventBuffer(256);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final Thread[] producers = new Thread[producerCount];
+        final int[] offeredCounts = new int[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < eventsPerProducer; i++) {
+                        // The time carries the producer's own sequence
+                        if (buffer.offer(i, "producer" + producer, true, null)) offeredCounts[producer]++;
+                    }
+                }
+            };
+            producers[p].start();
+        }
+
+        final long[] lastTimes = new long[producerCount];
+        Arrays.fill(lastTimes, -1);
+        final int[] drainedCounts = new int[producerCount];
+        final ExposureEventBuffer.Handler handler = new ExposureEventBuffer.Handler() {
+            public void onEvent(final long pTime, final String pFeature, final boolean pFeatureToggle, final String pVisitorId) {
+                final int producer = Integer.parseInt(pFeature.substring("producer".length()));
+                assertTrue("Events from " + pFeature + " out of order", pTime > lastTimes[producer]);
+                lastTimes[producer] = pTime;
+                drainedCounts[producer]++;
+            }
+        };
+
+        start.countDown();
+        boolean producing = true;
+        while (producing) {
+            producing = false;
+            for (Thread producer : producers) {
+                producing |= producer.isAlive();
+            }
+            buffer.drain(handler, 64);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        buffer.drain(handler, Integer.MAX_VALUE);
+
+        long drained = 0;
+        for (int p = 0; p < producerCount; p++) {
+            assertEquals("producer" + p, offeredCounts[p], drainedCounts[p]);
+            drained += drainedCounts[p];
+        }
+        assertEquals(producerCount * eventsPerProducer, drained + buffer.getDroppedCount());
+        assertEquals(0, buffer.size());
+    }
+
+    /**
+     * Handler recording the events drained
+     */
+    private static class RecordingHandler implements ExposureEventBuffer.Handler {
+        final List<Long> mTimes = new ArrayList<Long>();
+
+        final List<String> mFeatures = new ArrayList<String>();
+
+        final List<Boolean> mFeatureToggles = new ArrayList<Boolean>();
+
+        final List<String> mVisitorIds = new ArrayList<String>();
+
+        public void onEvent(final long pTime, final String pFeature, final boolean pFeatureToggle, final String pVisitorId) {
+            mTimes.add(Long.valueOf(pTime));
+            mFeatures.add(pFeature);
+            mFeatureToggles.add(Boolean.valueOf(pFeatureToggle));
+            mVisitorIds.add(pVisitorId);
+        }
+    }
+}
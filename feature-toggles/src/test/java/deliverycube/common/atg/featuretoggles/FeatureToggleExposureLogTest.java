@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the retention of {@link FeatureToggleExposureLog} files
+ * 
+ * @author Vihung Marathe
+ */
+public class FeatureToggleExposureLogTest {
+    private File mLogDirectory;
+
+    private FeatureToggleExposureLog mExposureLog;
+
+    @Before
+    public void setUp() throws IOException {
+        mLogDirectory = File.createTempFile("exposures", "");
+        mLogDirectory.delete();
+        mLogDirectory.mkdirs();
+
+        mExposureLog = new FeatureToggleExposureLog();
+        mExposureLog.setFilePrefix("exposures");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mLogDirectory.listFiles()) {
+            file.delete();
+        }
+        mLogDirectory.delete();
+    }
+
+    @Test
+    public void oldestFilesBeyondMaxFileCountAreDeleted() throws IOException {
+        createFiles("exposures-20261101-000000-000.ndjson", "exposures-20261103-000000-000.ndjson", "exposures-20261102-120000-000.ndjson",
+                "exposures-20261102-000000-000.ndjson", "other-20261001-000000-000.ndjson", "exposures.txt");
+        mExposureLog.setMaxFileCount(2);
+
+        assertEquals(2, mExposureLog.deleteOldFiles(mLogDirectory));
+        assertEquals(Arrays.asList("exposures-20261102-120000-000.ndjson", "exposures-20261103-000000-000.ndjson", "exposures.txt", "other-20261001-000000-000.ndjson"),
+                listFiles());
+    }
+
+    @Test
+    public void noFilesAreDeletedWithinMaxFileCount() throws IOException {
+        createFiles("exposures-20261101-000000-000.ndjson", "exposures-20261102-000000-000.ndjson");
+        mExposureLog.setMaxFileCount(2);
+
+        assertEquals(0, mExposureLog.deleteOldFiles(mLogDirectory));
+        assertEquals(2, listFiles().size());
+    }
+
+    @Test
+    public void zeroMaxFileCountKeepsAllFiles() throws IOException {
+        createFiles("exposures-20261101-000000-000.ndjson", "exposures-20261102-000000-000.ndjson", "exposures-20261103-000000-000.ndjson");
+        mExposureLog.setMaxFileCount(0);
+
+        assertEquals(0, mExposureLog.deleteOldFiles(mLogDirectory));
+        assertEquals(3, listFiles().size());
+    }
+
+    private void createFiles(final String... pNames) throws IOException {
+        for (String name : pNames) {
+            new File(mLogDirectory, name).createNewFile();
+        }
+    }
+
+    private List<String> listFiles() {
+        final String[] names = mLogDirectory.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FeatureToggleProgram}
+ * 
+ * @author Vihung Marathe
+ */
+public class FeatureToggleProgramTest {
+    /** 2026-11-27T00:00Z */
+    private static final long BLACK_FRIDAY = 1795737600000L;
+
+    @Test
+    public void andBindsTighterThanOr() {
+        final Map<String, Boolean> toggles = evaluate("a", "true", "b", "false", "c", "true", "x", "a || b && !c", "y", "b && c || a");
+
+        assertTrue("a || (b && !c)", toggles.get("x").booleanValue());
+        assertTrue("(b && c) || a", toggles.get("y").booleanValue());
+    }
+
+    @Test
+    public void notBindsTighterThanAndAndOr() {
+        final Map<String, Boolean> toggles = evaluate("a", "true", "c", "true", "x", "!a || c", "y", "!a && c");
+
+        assertTrue("(!a) || c", toggles.get("x").booleanValue());
+        assertFalse("(!a) && c", toggles.get("y").booleanValue());
+    }
+
+    @Test
+    public void parenthesesOverridePrecedence() {
+        final Map<String, Boolean> toggles = evaluate("a", "true", "b", "false", "c", "true", "x", "(a || b) && !c", "y", "!(a && c)");
+
+        assertFalse("(a || b) && !c", toggles.get("x").booleanValue());
+        assertFalse("!(a && c)", toggles.get("y").booleanValue());
+    }
+
+    @Test
+    public void referencesAreEvaluatedBeforeTheTogglesThatUseThem() {
+        // Names sort in the opposite order to the references between them
+        final FeatureToggleProgram program = compile("a", "b", "b", "c && true", "c", "true");
+        final Map<String, Boolean> toggles = program.evaluate(0L);
+
+        assertTrue(program.getErrors().isEmpty());
+        assertTrue(toggles.get("a").booleanValue());
+        assertTrue(toggles.get("b").booleanValue());
+    }
+
+    @Test
+    public void cycleIsReportedAndOff() {
+        final FeatureToggleProgram program = compile("p", "q || true", "q", "!p", "r", "!p", "s", "s");
+        final Map<String, Boolean> toggles = program.evaluate(0L);
+
+        assertEquals(program.getErrors().toString(), 2, program.getErrors().size());
+        assertTrue(program.getErrors().get(0), program.getErrors().get(0).contains("p -> q -> p"));
+        assertFalse(toggles.get("p").booleanValue());
+        assertFalse(toggles.get("q").booleanValue());
+        assertFalse(toggles.get("s").booleanValue());
+
+        // A toggle that refers to a cycle, without being in it, sees it as off
+        assertTrue(toggles.get("r").booleanValue());
+    }
+
+    @Test
+    public void unknownReferenceIsOff() {
+        final FeatureToggleProgram program = compile("u", "missing || false", "v", "!missing");
+        final Map<String, Boolean> toggles = program.evaluate(0L);
+
+        assertTrue(program.getErrors().isEmpty());
+        assertFalse(toggles.get("u").booleanValue());
+        assertTrue(toggles.get("v").booleanValue());
+        assertFalse(toggles.containsKey("missing"));
+    }
+
+    @Test
+    public void overrideOfUnknownReferenceIsSeen() {
+        final Map<String, Boolean> toggles = compile("u", "missing || false").evaluate(0L, Collections.singletonMap("missing", Boolean.TRUE));
+
+        assertTrue(toggles.get("u").booleanValue());
+        assertTrue(toggles.get("missing").booleanValue());
+    }
+
+    @Test
+    public void overrideIsSeenByReferences() {
+        final Map<String, Boolean> toggles = compile("a", "true", "b", "a").evaluate(0L, Collections.singletonMap("a", Boolean.FALSE));
+
+        assertFalse(toggles.get("a").booleanValue());
+        assertFalse(toggles.get("b").booleanValue());
+    }
+
+    @Test
+    public void invalidValueIsReportedAndOff() {
+        final FeatureToggleProgram program = compile("a", "true", "bad1", "true &&", "bad2", "(a || true", "bad3", "a b", "bad4", "true@2026-13-45T00:00Z", "ok",
+                "a");
+        final Map<String, Boolean> toggles = program.evaluate(0L);
+
+        assertEquals(program.getErrors().toString(), 4, program.getErrors().size());
+        assertFalse(toggles.get("bad1").booleanValue());
+        assertFalse(toggles.get("bad2").booleanValue());
+        assertFalse(toggles.get("bad3").booleanValue());
+        assertFalse(toggles.get("bad4").booleanValue());
+        assertTrue(toggles.get("ok").booleanValue());
+    }
+
+    @Test
+    public void scheduledValueTakesEffectAtItsInstant() {
+        final FeatureToggleProgram program = compile("promo", "false;true@2026-11-27T00:00Z;false@2026-11-27T02:00+01:00");
+
+        assertTrue(program.getErrors().isEmpty());
+        assertFalse(program.evaluate(BLACK_FRIDAY - 1).get("promo").booleanValue());
+        assertTrue(program.evaluate(BLACK_FRIDAY).get("promo").booleanValue());
+        assertFalse(program.evaluate(BLACK_FRIDAY + 3600000L).get("promo").booleanValue());
+        assertEquals(BLACK_FRIDAY, program.nextBoundary(0L));
+        assertEquals(BLACK_FRIDAY + 3600000L, program.nextBoundary(BLACK_FRIDAY));
+        assertEquals(Long.MAX_VALUE, program.nextBoundary(BLACK_FRIDAY + 3600000L));
+    }
+
+    /**
+     * Compile toggles given as alternating names and values
+     */
+    private static FeatureToggleProgram compile(final String... pNamesAndValues) {
+        final Properties featureToggles = new Properties();
+        for (int i = 0; i < pNamesAndValues.length; i += 2) {
+            featureToggles.setProperty(pNamesAndValues[i], pNamesAndValues[i + 1]);
+        }
+        return FeatureToggleProgram.compile(featureToggles);
+    }
+
+    private static Map<String, Boolean> evaluate(final String... pNamesAndValues) {
+        final FeatureToggleProgram program = compile(pNamesAndValues);
+        assertTrue(program.getErrors().toString(), program.getErrors().isEmpty());
+        return program.evaluate(0L);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FeatureToggleSnapshotFile}, and for
+ * {@link FeatureToggleServiceImpl} starting from one
+ * 
+ * @author Vihung Marathe
+ */
+public class FeatureToggleSnapshotFileTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("featuretoggles", ".snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void snapshotAndOverridesSurviveRoundTrip() throws IOException {
+        final Map<String, Boolean> featureToggles = toggles("feature1", true, "feature2", false, "caf\u00e9", true);
+        final Map<String, Boolean> overrides = toggles("feature2", true);
+        FeatureToggleSnapshotFile.write(mFile, new FeatureToggleSnapshot(42L, featureToggles), overrides);
+
+        final FeatureToggleSnapshotFile snapshotFile = FeatureToggleSnapshotFile.read(mFile);
+
+        assertEquals(42L, snapshotFile.getSnapshot().getVersion());
+        assertEquals(featureToggles, snapshotFile.getSnapshot().getFeatureToggles());
+        assertEquals(overrides, snapshotFile.getOverrides());
+    }
+
+    @Test
+    public void emptySnapshotSurvivesRoundTrip() throws IOException {
+        FeatureToggleSnapshotFile.write(mFile, new FeatureToggleSnapshot(0L, Collections.<String, Boolean> emptyMap()), Collections.<String, Boolean> emptyMap());
+
+        final FeatureToggleSnapshotFile snapshotFile = FeatureToggleSnapshotFile.read(mFile);
+
+        assertTrue(snapshotFile.getSnapshot().getFeatureToggles().isEmpty());
+        assertTrue(snapshotFile.getOverrides().isEmpty());
+    }
+
+    @Test
+    public void writeReplacesExistingFile() throws IOException {
+        FeatureToggleSnapshotFile.write(mFile, new FeatureToggleSnapshot(1L, toggles("feature1", true)), Collections.<String, Boolean> emptyMap());
+        FeatureToggleSnapshotFile.write(mFile, new FeatureToggleSnapshot(2L, toggles("feature1", false)), Collections.<String, Boolean> emptyMap());
+
+        final FeatureToggleSnapshotFile snapshotFile = FeatureToggleSnapshotFile.read(mFile);
+
+        assertEquals(2L, snapshotFile.getSnapshot().getVersion());
+        assertEquals(toggles("feature1", false), snapshotFile.getSnapshot().getFeatureToggles());
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void badMagicNumberIsRejected() throws IOException {
+        final byte[] contents = writeValidFile();
+        contents[0] = 'X';
+        updateChecksum(contents);
+
+        assertRejected(contents, "is not a feature toggle snapshot file");
+    }
+
+    @Test
+    public void unknownFormatVersionIsRejected() throws IOException {
+        final byte[] contents = writeValidFile();
+        ByteBuffer.wrap(contents).putInt(4, 2);
+        updateChecksum(contents);
+
+        assertRejected(contents, "unsupported format version 2");
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws IOException {
+        final byte[] contents = writeValidFile();
+
+        assertRejected(Arrays.copyOf(contents, contents.length - 5), "checksum does not match");
+        assertRejected(Arrays.copyOf(contents, 20), "size 20");
+    }
+
+    @Test
+    public void truncatedContentWithValidChecksumIsRejected() throws IOException {
+        // Claims three feature toggles, but holds none
+        final ByteBuffer data = ByteBuffer.allocate(36);
+        data.putInt(0x44434654).putInt(1).putLong(1L).putLong(System.currentTimeMillis()).putInt(3);
+        final byte[] contents = data.array();
+        updateChecksum(contents);
+
+        assertRejected(contents, "truncated");
+    }
+
+    @Test
+    public void checksumMismatchIsRejected() throws IOException {
+        final byte[] contents = writeValidFile();
+        // The value of the last override
+        contents[contents.length - 9] ^= 1;
+
+        assertRejected(contents, "checksum does not match");
+    }
+
+    @Test
+    public void corruptFileFallsBackToRecomputing() throws Exception {
+        final byte[] contents = writeValidFile();
+        contents[contents.length - 9] ^= 1;
+        writeFile(contents);
+
+        final FeatureToggleServiceImpl service = new FeatureToggleServiceImpl();
+        final Properties features = new Properties();
+        features.setProperty("feature1", "false");
+        features.setProperty("feature3", "true");
+        service.setFeatures(features);
+        service.setSnapshotFile(mFile.getPath());
+        service.doStartService();
+        try {
+            assertEquals(toggles("feature1", false, "feature3", true), service.getSnapshot().getFeatureToggles());
+            assertTrue(service.getOverrides().isEmpty());
+
+            // The recomputed snapshot replaces the corrupt file
+            assertEquals(toggles("feature1", false, "feature3", true), FeatureToggleSnapshotFile.read(mFile).getSnapshot().getFeatureToggles());
+        } finally {
+            service.doStopService();
+        }
+    }
+
+    /**
+     * Write a valid snapshot file, ending with an override set to true
+     * 
+     * @return its contents
+     */
+    private byte[] writeValidFile() throws IOException {
+        FeatureToggleSnapshotFile.write(mFile, new FeatureToggleSnapshot(7L, toggles("feature1", true, "feature2", false)), toggles("feature1", true));
+        final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            final byte[] contents = new byte[(int) file.length()];
+            file.readFully(contents);
+            return contents;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeFile(final byte[] pContents) throws IOException {
+        final FileOutputStream file = new FileOutputStream(mFile);
+        try {
+            file.write(pContents);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void assertRejected(final byte[] pContents, final String pReason) throws IOException {
+        writeFile(pContents);
+        try {
+            FeatureToggleSnapshotFile.read(mFile);
+            fail("Expected an IOException - " + pReason);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(pReason));
+        }
+    }
+
+    /**
+     * Recompute the trailing checksum, so that only the change under test is
+     * invalid
+     */
+    private static void updateChecksum(final byte[] pContents) {
+        final CRC32 crc = new CRC32();
+        crc.update(pContents, 0, pContents.length - 8);
+        ByteBuffer.wrap(pContents).putLong(pContents.length - 8, crc.getValue());
+    }
+
+    private static Map<String, Boolean> toggles(final Object... pNamesAndValues) {
+        final Map<String, Boolean> toggles = new HashMap<String, Boolean>();
+        for (int i = 0; i < pNamesAndValues.length; i += 2) {
+            toggles.put((String) pNamesAndValues[i], (Boolean) pNamesAndValues[i + 1]);
+        }
+        return toggles;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.featuretoggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link HashedTimerWheel}
+ * 
+ * @author Vihung Marathe
+ */
+public class HashedTimerWheelTest {
+    /** The length of a tick */
+    private static final long TICK_MILLIS = 10;
+
+    /** How late, beyond a tick, a task may run on a busy machine */
+    private static final long SLACK_MILLIS = 250;
+
+    /** Four buckets of a tick each - one turn of the wheel */
+    private static final long TURN_MILLIS = 4 * TICK_MILLIS;
+
+    private HashedTimerWheel mTimerWheel;
+
+    @Before
+    public void setUp() {
+        mTimerWheel = new HashedTimerWheel(TICK_MILLIS, 4, "HashedTimerWheelTest");
+        mTimerWheel.start();
+    }
+
+    @After
+    public void tearDown() {
+        mTimerWheel.stop();
+    }
+
+    @Test
+    public void bucketCountThatIsNotAPowerOfTwoIsRoundedUp() {
+        final HashedTimerWheel timerWheel = new HashedTimerWheel(TICK_MILLIS, 3, "HashedTimerWheelTest-3");
+        final RecordingTask task = new RecordingTask();
+        timerWheel.start();
+        try {
+            final long deadline = System.currentTimeMillis() + 5 * TICK_MILLIS;
+            timerWheel.schedule(deadline, task);
+
+            assertRanOnTime(task, deadline);
+        } finally {
+            timerWheel.stop();
+        }
+    }
+
+    @Test
+    public void deadlineShorterThanOneTickRunsWithinATick() throws InterruptedException {
+        final RecordingTask task = new RecordingTask();
+        final long deadline = System.currentTimeMillis() + TICK_MILLIS / 2;
+        mTimerWheel.schedule(deadline, task);
+
+        assertRanOnTime(task, deadline);
+    }
+
+    @Test
+    public void deadlineInThePastRunsOnTheNextTick() throws InterruptedException {
+        final RecordingTask task = new RecordingTask();
+        final long deadline = System.currentTimeMillis() - TURN_MILLIS;
+        mTimerWheel.schedule(deadline, task);
+
+        assertTrue(task.await(TICK_MILLIS + SLACK_MILLIS));
+    }
+
+    @Test
+    public void deadlinePastOneTurnRunsOnTimeNotOnAnEarlierTurn() throws InterruptedException {
+        final RecordingTask task = new RecordingTask();
+        final long deadline = System.currentTimeMillis() + 3 * TURN_MILLIS + TICK_MILLIS / 2;
+        mTimerWheel.schedule(deadline, task);
+
+        assertRanOnTime(task, deadline);
+    }
+
+    @Test
+    public void tasksInTheSameBucketOnDifferentTurnsRunAtTheirOwnDeadlines() throws InterruptedException {
+        final RecordingTask first = new RecordingTask();
+        final RecordingTask second = new RecordingTask();
+        final long now = System.currentTimeMillis();
+        mTimerWheel.schedule(now + TURN_MILLIS, first);
+        mTimerWheel.schedule(now + 3 * TURN_MILLIS, second);
+
+        assertRanOnTime(first, now + TURN_MILLIS);
+        assertRanOnTime(second, now + 3 * TURN_MILLIS);
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() throws InterruptedException {
+        final RecordingTask cancelled = new RecordingTask();
+        final RecordingTask later = new RecordingTask();
+        final long now = System.currentTimeMillis();
+        final HashedTimerWheel.Timeout timeout = mTimerWheel.schedule(now + 2 * TICK_MILLIS, cancelled);
+        mTimerWheel.schedule(now + TURN_MILLIS + 2 * TICK_MILLIS, later);
+        timeout.cancel();
+
+        assertTrue(timeout.isCancelled());
+        assertTrue(later.await(TURN_MILLIS + 2 * TICK_MILLIS + SLACK_MILLIS));
+        assertEquals(0, cancelled.mRunCount.get());
+    }
+
+    @Test
+    public void taskCancelledByAnEarlierTaskInTheSameTickDoesNotRun() throws InterruptedException {
+        final RecordingTask cancelled = new RecordingTask();
+        final long deadline = System.currentTimeMillis() + 2 * TICK_MILLIS;
+        final HashedTimerWheel.Timeout[] timeout = new HashedTimerWheel.Timeout[1];
+        final RecordingTask canceller = new RecordingTask() {
+            @Override
+            public void run() {
+                timeout[0].cancel();
+                super.run();
+            }
+        };
+        // Scheduled in the same order as they run
+        mTimerWheel.schedule(deadline, canceller);
+        timeout[0] = mTimerWheel.schedule(deadline, cancelled);
+
+        assertTrue(canceller.await(2 * TICK_MILLIS + SLACK_MILLIS));
+        Thread.sleep(2 * TICK_MILLIS);
+        assertEquals(0, cancelled.mRunCount.get());
+    }
+
+    @Test
+    public void stopDiscardsTasksNotYetRun() throws InterruptedException {
+        final RecordingTask task = new RecordingTask();
+        mTimerWheel.schedule(System.currentTimeMillis() + 2 * TICK_MILLIS, task);
+        mTimerWheel.stop();
+
+        assertFalse(task.await(2 * TICK_MILLIS + SLACK_MILLIS));
+    }
+
+    @Test
+    public void taskThatThrowsDoesNotStopTheWheel() throws InterruptedException {
+        final RecordingTask task = new RecordingTask();
+        final long now = System.currentTimeMillis();
+        final Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(final Thread pThread, final Throwable pThrowable) {
+                // Expected
+            }
+        });
+        try {
+            mTimerWheel.schedule(now + TICK_MILLIS, new Runnable() {
+                public void run() {
+                    throw new IllegalStateException("Expected");
+                }
+            });
+            mTimerWheel.schedule(now + 3 * TICK_MILLIS, task);
+
+            assertRanOnTime(task, now + 3 * TICK_MILLIS);
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    private static void assertRanOnTime(final RecordingTask pTask, final long pDeadline) {
+        final long wait = Math.max(0, pDeadline - System.currentTimeMillis()) + TICK_MILLIS + SLACK_MILLIS;
+        assertTrue("Task did not run", pTask.await(wait));
+        final long ranAt = pTask.mRanAt.get();
+        assertTrue("Task ran " + (pDeadline - ranAt) + "ms early", ranAt >= pDeadline);
+        assertTrue("Task ran " + (ranAt - pDeadline) + "ms late", ranAt <= pDeadline + TICK_MILLIS + SLACK_MILLIS);
+        assertEquals(1, pTask.mRunCount.get());
+    }
+
+    /**
+     * Task recording when, and how often, it ran
+     */
+    private static class RecordingTask implements Runnable {
+        final AtomicLong mRanAt = new AtomicLong();
+
+        final AtomicLong mRunCount = new AtomicLong();
+
+        private final CountDownLatch mRan = new CountDownLatch(1);
+
+        public void run() {
+            mRanAt.set(System.currentTimeMillis());
+            mRunCount.incrementAndGet();
+            mRan.countDown();
+        }
+
+        boolean await(final long pMillis) {
+            try {
+                return mRan.await(pMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction;
+
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.apache.log4j.Logger;
+
+import atg.dtm.TransactionDemarcation;
+import atg.dtm.TransactionDemarcationException;
+
+/**
+ * A single transaction demarcation, configured by {@link TransactionAttributes}
+ * . Wraps an ATG {@link TransactionDemarcation}, adding support for a
+ * transaction timeout and for read-only transactions.
+ * 
+ * If a timeout is configured, it is set on the Transaction Manager for the
+ * transaction begun by this demarcation only, and the default is restored
+ * straight after. If the work takes longer than the timeout, the transaction
+ * is rolled back when the demarcation ends - whether or not the Transaction
+ * Manager has already timed it out - and counted in {@link TransactionMetrics}.
+ * The Transaction Manager is not touched if no timeout is configured.
+ * 
+ * JTA has no way to read the timeout currently set for a thread, so it cannot
+ * be restored. Instead, it is reset to 0 - the Transaction Manager's default.
+ * A timeout set on the thread by other code, before this demarcation begins,
+ * is therefore lost if this demarcation has a timeout of its own. Code that
+ * mixes the two should set its timeout again after this demarcation begins.
+ * 
+ * If the demarcation is read-only, a transaction begun by it is rolled back,
+ * rather than committed, when the demarcation ends - skipping the prepare and
+ * commit phases and the synchronizations that run before completion. It is not
+ * marked rollback-only up front, as that would stop resources from enlisting
+ * in it. A read-only demarcation that joins a writable transaction has no
+ * effect on it. Code that writes can check for a read-only transaction with
+ * {@link ReadOnlyTransactions}.
+ * 
+ * If the current thread has a {@link DeferredTransaction} that this
+ * demarcation would join, it is begun first. If this demarcation would not
+ * join it, it is not begun until this demarcation ends.
+ * 
+ * This is a stateful object - use a new instance for each demarcation.
+ * 
+ * @author Vihung Marathe
+ */
+public class ATGTransactionDemarcation {
+    /** Logger for ATGTransactionDemarcation */
+    private static final Logger log = Logger.getLogger(ATGTransactionDemarcation.class);
+
+    private final TransactionAttributes mAttributes;
+
+    private final TransactionDemarcation mDemarcation = new TransactionDemarcation();
+
+    /** The transaction begun by this demarcation, if it needed to be tracked */
+    private Transaction mTransaction;
+
+    /** When the transaction times out, in {@link System#nanoTime()} terms */
+    private long mDeadline;
+
+    /** Whether the current thread was in a read-only demarcation before this one */
+    private boolean mOuterReadOnly;
+
+    /** The deferred transaction suspended while this demarcation is in progress, if any */
+    private DeferredTransaction mSuspendedDeferred;
+
+    /**
+     * Constructor.
+     * 
+     * @param pAttributes
+     *            the attributes of this demarcation
+     */
+    public ATGTransactionDemarcation(final TransactionAttributes pAttributes) {
+        super();
+        mAttributes = pAttributes;
+    }
+
+    /**
+     * Begin the demarcation.
+     * 
+     * @param pTransactionManager
+     *            the Transaction Manager
+     * @throws TransactionDemarcationException
+     *             if the demarcation cannot begin
+     */
+    public void begin(final TransactionManager pTransactionManager) throws TransactionDemarcationException {
+        if (joinsOuterTransaction()) {
+            DeferredTransaction.ensureBegun();
+        } else {
+            // Work inside this demarcation must not begin, and so move into, a deferred transaction
+            mSuspendedDeferred = DeferredTransaction.suspend();
+        }
+
+        boolean begun = false;
+        try {
+            doBegin(pTransactionManager);
+            begun = true;
+        } finally {
+            if (!begun) resumeDeferred();
+        }
+    }
+
+    private void doBegin(final TransactionManager pTransactionManager) throws TransactionDemarcationException {
+        final int timeoutSeconds = mAttributes.getTimeoutSeconds();
+        mOuterReadOnly = ReadOnlyTransactions.isReadOnly();
+
+        // The common case - nothing to track
+        if (timeoutSeconds <= 0 && !mAttributes.isReadOnly() && !mOuterReadOnly) {
+            mDemarcation.begin(pTransactionManager, mAttributes.getDemarcationMode());
+            return;
+        }
+
+        final Transaction outerTransaction = getTransaction(pTransactionManager);
+
+        if (timeoutSeconds > 0) {
+            setTransactionTimeout(pTransactionManager, timeoutSeconds);
+            try {
+                mDemarcation.begin(pTransactionManager, mAttributes.getDemarcationMode());
+            } finally {
+                // JTA has no way to read the previous timeout - zero restores the default, not the previous value
+                setTransactionTimeout(pTransactionManager, 0);
+            }
+        } else {
+            mDemarcation.begin(pTransactionManager, mAttributes.getDemarcationMode());
+        }
+
+        // Only a transaction begun by this demarcation is subject to its timeout and read-only attribute
+        final Transaction transaction = getTransaction(pTransactionManager);
+        if (transaction != null && transaction != outerTransaction) {
+            mTransaction = transaction;
+            mDeadline = System.nanoTime() + timeoutSeconds * 1000000000L;
+        }
+
+        // A read-only attribute only applies to a transaction begun here - joining a writable transaction
+        // leaves it writable, while joining a read-only one keeps it read-only
+        final boolean joined = transaction != null && transaction == outerTransaction;
+        ReadOnlyTransactions.setReadOnly(mTransaction != null ? mAttributes.isReadOnly() : mOuterReadOnly && joined);
+    }
+
+    /**
+     * End the demarcation, committing or rolling back any transaction begun by
+     * it.
+     * 
+     * @param pSuccess
+     *            whether the work succeeded. If not, the transaction is rolled
+     *            back.
+     * @throws TransactionDemarcationException
+     *             if the demarcation cannot end
+     * @throws TransactionTimeoutException
+     *             if the work succeeded, but exceeded the timeout, and so the
+     *             transaction was rolled back
+     */
+    public void end(final boolean pSuccess) throws TransactionDemarcationException {
+        final boolean timedOut = mTransaction != null && mAttributes.getTimeoutSeconds() > 0 && System.nanoTime() - mDeadline >= 0;
+        final boolean readOnly = mTransaction != null && mAttributes.isReadOnly();
+
+        if (timedOut) {
+            TransactionMetrics.getInstance().incrementTimedOutCount();
+            log.warn("end(): Transaction exceeded timeout of " + mAttributes.getTimeoutSeconds() + "s, rolling back. transaction=" + mTransaction);
+        }
+
+        try {
+            mDemarcation.end(!pSuccess || timedOut || readOnly);
+        } finally {
+            if (mOuterReadOnly || mAttributes.isReadOnly()) ReadOnlyTransactions.setReadOnly(mOuterReadOnly);
+            resumeDeferred();
+        }
+
+        if (timedOut && pSuccess) {
+            throw new TransactionTimeoutException("Transaction exceeded timeout of " + mAttributes.getTimeoutSeconds() + "s and was rolled back");
+        }
+    }
+
+    /**
+     * @return the attributes of this demarcation
+     */
+    public TransactionAttributes getAttributes() {
+        return mAttributes;
+    }
+
+    private void resumeDeferred() {
+        if (mSuspendedDeferred != null) {
+            mSuspendedDeferred.resume();
+            mSuspendedDeferred = null;
+        }
+    }
+
+    /**
+     * @return whether this demarcation would join a transaction already in
+     *         progress
+     */
+    boolean joinsOuterTransaction() {
+        switch (mAttributes.getPropagationLevel()) {
+        case REQUIRED:
+        case MANDATORY:
+        case SUPPORTS:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static Transaction getTransaction(final TransactionManager pTransactionManager) throws TransactionDemarcationException {
+        try {
+            return pTransactionManager.getTransaction();
+        } catch (final SystemException e) {
+            log.error(e.getMessage(), e);
+            throw new TransactionDemarcationException("Could not get the current transaction: " + e);
+        }
+    }
+
+    private static void setTransactionTimeout(final TransactionManager pTransactionManager, final int pTimeoutSeconds) throws TransactionDemarcationException {
+        try {
+            pTransactionManager.setTransactionTimeout(pTimeoutSeconds);
+        } catch (final SystemException e) {
+            log.error(e.getMessage(), e);
+            throw new TransactionDemarcationException("Could not set the transaction timeout: " + e);
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.apache.log4j.Logger;
+
+import atg.dtm.TransactionDemarcationException;
+import deliverycube.common.atg.componentresolver.UnknownComponentException;
+import deliverycube.common.atg.componentresolver.jndi.JndiComponentResolver;
+
+/**
+ * Runs tasks - sending emails, publishing messages, warming caches - only once
+ * the current transaction has committed, and on a background thread, so that
+ * they neither run for work that is rolled back nor hold the transaction open.
+ * 
+ * The first task queued in a transaction registers a JTA
+ * {@link Synchronization} with it. When the transaction commits, its tasks are
+ * handed, in order, to a bounded thread pool. When it rolls back, they are
+ * discarded. A task queued outside a transaction is handed to the pool
+ * straight away.
+ * 
+ * A task queued in a {@link DeferredTransaction} that has not begun yet does
+ * not begin it. The task waits for it to commit if it begins, or, if it never
+ * begins, runs once it ends successfully. Tasks cannot be queued in a
+ * read-only transaction, which is always rolled back.
+ * 
+ * The tasks queued in a transaction are handed to the pool in the order they
+ * were queued, including those queued in a {@link DeferredTransaction} before
+ * it began, which share its one {@link Synchronization}. The order of tasks
+ * queued in different transactions, or run by different threads of the pool,
+ * is not guaranteed.
+ * 
+ * Tasks are handed to the pool in <code>afterCompletion</code>, on the
+ * committing thread, which must not be held up. So if the pool's queue is full,
+ * the task is discarded and an error logged, unless the executor was created
+ * with a submit timeout, in which case the committing thread waits for room up
+ * to that timeout first. Tasks are never run on the committing thread. Counters
+ * and the queue depth are available to monitor this.
+ * 
+ * Usage is along the lines of
+ * 
+ * <pre>
+ * &#064;ATGTransaction
+ * public void placeOrder(final Order pOrder) {
+ *     ...
+ *     AfterCommitExecutor.getInstance().execute(new Runnable() {
+ *         public void run() {
+ *             sendConfirmationEmail(pOrder);
+ *         }
+ *     });
+ * }
+ * </pre>
+ * 
+ * @author Vihung Marathe
+ */
+public class AfterCommitExecutor {
+    /** Logger for AfterCommitExecutor */
+    private static final Logger log = Logger.getLogger(AfterCommitExecutor.class);
+
+    /** The Nucleus name of the Transaction Manager */
+    private static final String TRANSACTION_MANAGER_NAME = "/atg/dynamo/transaction/TransactionManager";
+
+    /** The default number of threads in the pool */
+    public static final int DEFAULT_THREAD_COUNT = 4;
+
+    /** The default capacity of the pool's queue */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /** The default time to wait for room in a full queue - none */
+    public static final long DEFAULT_SUBMIT_TIMEOUT_MILLIS = 0;
+
+    /** The shared instance, created on first use */
+    private static volatile AfterCommitExecutor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /** The tasks queued in the current thread's transaction */
+    private final ThreadLocal<AfterCommitTasks> mCurrentTasks = new ThreadLocal<AfterCommitTasks>();
+
+    /** The resolved Transaction Manager, looked up on first use */
+    private volatile TransactionManager mTransactionManager;
+
+    /** Count of tasks handed to the pool, including those it rejected */
+    private final AtomicLong mSubmittedCount = new AtomicLong();
+
+    /** Count of tasks discarded because their transaction rolled back */
+    private final AtomicLong mDiscardedCount = new AtomicLong();
+
+    /** Count of tasks the committing thread had to wait for room in the queue for */
+    private final AtomicLong mBlockedCount = new AtomicLong();
+
+    /** Count of tasks discarded because the queue was full */
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    /** Count of tasks that threw an exception */
+    private final AtomicLong mFailedCount = new AtomicLong();
+
+    /**
+     * Constructor. Tasks that find the queue full are discarded.
+     * 
+     * @param pThreadCount
+     *            the number of threads in the pool
+     * @param pQueueCapacity
+     *            the number of tasks that can wait for a thread, before tasks
+     *            are discarded
+     */
+    public AfterCommitExecutor(final int pThreadCount, final int pQueueCapacity) {
+        this(pThreadCount, pQueueCapacity, DEFAULT_SUBMIT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param pThreadCount
+     *            the number of threads in the pool
+     * @param pQueueCapacity
+     *            the number of tasks that can wait for a thread, before the
+     *            committing thread has to wait for room
+     * @param pSubmitTimeoutMillis
+     *            how long the committing thread waits for room in a full
+     *            queue, before discarding the task. It waits inside
+     *            <code>afterCompletion</code>, holding up the end of its
+     *            request, so keep this short. With <code>0</code> it does not
+     *            wait.
+     */
+    public AfterCommitExecutor(final int pThreadCount, final int pQueueCapacity, final long pSubmitTimeoutMillis) {
+        super();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            public Thread newThread(final Runnable pRunnable) {
+                final Thread thread = new Thread(pRunnable, "AfterCommitExecutor-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        // Running the task here would run it inside the transaction's afterCompletion
+        final RejectedExecutionHandler discardOrWaitForRoom = new RejectedExecutionHandler() {
+            public void rejectedExecution(final Runnable pTask, final ThreadPoolExecutor pExecutor) {
+                if (pExecutor.isShutdown()) {
+                    mDiscardedCount.incrementAndGet();
+                    log.warn("rejectedExecution(): Executor is shut down, discarding task " + pTask);
+                    return;
+                }
+                boolean queued = false;
+                if (pSubmitTimeoutMillis > 0) {
+                    mBlockedCount.incrementAndGet();
+                    try {
+                        queued = pExecutor.getQueue().offer(pTask, pSubmitTimeoutMillis, TimeUnit.MILLISECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (!queued) {
+                    mRejectedCount.incrementAndGet();
+                    log.error("rejectedExecution(): Queue full after waiting " + pSubmitTimeoutMillis + "ms, discarding task " + pTask);
+                }
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(pThreadCount, pThreadCount, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(pQueueCapacity), threadFactory, discardOrWaitForRoom);
+    }
+
+    /**
+     * @return the shared instance, with the default number of threads and
+     *         queue capacity
+     */
+    public static AfterCommitExecutor getInstance() {
+        AfterCommitExecutor instance = sInstance;
+        if (instance == null) {
+            synchronized (AfterCommitExecutor.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new AfterCommitExecutor(DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_CAPACITY);
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Run a task once the current transaction has committed, or straight away
+     * if there is no transaction. The task is discarded if the transaction
+     * rolls back.
+     * 
+     * @param pTask
+     *            the task
+     * @throws TransactionDemarcationException
+     *             if the current transaction cannot be determined, or the task
+     *             cannot be registered with it
+     * @throws IllegalStateException
+     *             if the current transaction is read-only, and so will never
+     *             commit
+     */
+    public void execute(final Runnable pTask) throws TransactionDemarcationException {
+        // Registering with a deferred transaction that has not begun leaves it unbegun
+        final DeferredTransaction deferred = DeferredTransaction.getPending();
+        if (ReadOnlyTransactions.isReadOnly() || deferred != null && deferred.isReadOnly()) {
+            throw new IllegalStateException("Cannot run a task after commit in a read-only transaction, which is always rolled back");
+        }
+
+        if (deferred != null) {
+            AfterCommitTasks tasks = mCurrentTasks.get();
+            if (tasks == null || !tasks.isFor(deferred)) {
+                tasks = new AfterCommitTasks(deferred);
+                deferred.registerSynchronization(tasks);
+                mCurrentTasks.set(tasks);
+            }
+            tasks.add(pTask);
+            return;
+        }
+
+        final Transaction transaction = getTransaction();
+        if (transaction == null || !isActive(transaction)) {
+            if (log.isDebugEnabled()) log.debug("execute(): No active transaction, submitting task now");
+            submit(pTask);
+            return;
+        }
+
+        AfterCommitTasks tasks = mCurrentTasks.get();
+        if (tasks == null || !tasks.isFor(transaction)) {
+            tasks = new AfterCommitTasks(transaction);
+            try {
+                transaction.registerSynchronization(tasks);
+            } catch (final RollbackException e) {
+                // the transaction is marked for rollback, so the task would never run
+                if (log.isDebugEnabled()) log.debug("execute(): Transaction is marked for rollback, discarding task");
+                mDiscardedCount.incrementAndGet();
+                return;
+            } catch (final SystemException e) {
+                log.error(e.getMessage(), e);
+                throw new TransactionDemarcationException("Could not register with the current transaction: " + e);
+            }
+            mCurrentTasks.set(tasks);
+        }
+        tasks.add(pTask);
+    }
+
+    /**
+     * Hand a task to the pool, discarding it, or waiting for room, if the queue
+     * is full
+     */
+    private void submit(final Runnable pTask) {
+        mSubmittedCount.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    pTask.run();
+                } catch (final RuntimeException e) {
+                    mFailedCount.incrementAndGet();
+                    log.error("run(): After-commit task failed: " + e.getMessage(), e);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return pTask.toString();
+            }
+        });
+    }
+
+    /**
+     * The tasks queued in one transaction
+     */
+    private class AfterCommitTasks implements Synchronization {
+        /** The transaction, or deferred transaction, the tasks are queued in */
+        private final Object mTransaction;
+
+        private final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+        private boolean mCompleted;
+
+        AfterCommitTasks(final Object pTransaction) {
+            mTransaction = pTransaction;
+        }
+
+        /**
+         * @return whether the tasks are queued in the given transaction, or
+         *         deferred transaction - including the transaction a deferred
+         *         one began, or joined, once it has
+         */
+        synchronized boolean isFor(final Object pTransaction) {
+            if (mCompleted) return false;
+            if (mTransaction.equals(pTransaction)) return true;
+            return mTransaction instanceof DeferredTransaction && pTransaction.equals(((DeferredTransaction) mTransaction).getRegisteredTransaction());
+        }
+
+        synchronized void add(final Runnable pTask) {
+            mTasks.add(pTask);
+        }
+
+        public void beforeCompletion() {
+            // Nothing to do until the outcome is known
+        }
+
+        public void afterCompletion(final int pStatus) {
+            final List<Runnable> tasks;
+            synchronized (this) {
+                mCompleted = true;
+                tasks = new ArrayList<Runnable>(mTasks);
+                mTasks.clear();
+            }
+            // afterCompletion may run on another thread, in which case the stale entry is replaced on next use
+            if (mCurrentTasks.get() == this) mCurrentTasks.remove();
+
+            if (pStatus == Status.STATUS_COMMITTED) {
+                if (log.isDebugEnabled()) log.debug("afterCompletion(): Transaction committed, submitting " + tasks.size() + " tasks");
+                for (Runnable task : tasks) {
+                    submit(task);
+                }
+            } else {
+                if (log.isDebugEnabled()) log.debug("afterCompletion(): Transaction did not commit, status=" + pStatus + ", discarding " + tasks.size() + " tasks");
+                mDiscardedCount.addAndGet(tasks.size());
+            }
+        }
+    }
+
+    /**
+     * Stop accepting tasks, and wait for queued ones to finish
+     * 
+     * @param pTimeoutMillis
+     *            how long to wait
+     * @return <code>true</code> if all queued tasks finished in time
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean shutdown(final long pTimeoutMillis) throws InterruptedException {
+        mExecutor.shutdown();
+        return mExecutor.awaitTermination(pTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isActive(final Transaction pTransaction) throws TransactionDemarcationException {
+        try {
+            final int status = pTransaction.getStatus();
+            return status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK;
+        } catch (final SystemException e) {
+            log.error(e.getMessage(), e);
+            throw new TransactionDemarcationException("Could not get the status of the current transaction: " + e);
+        }
+    }
+
+    private Transaction getTransaction() throws TransactionDemarcationException {
+        try {
+            return getTransactionManager().getTransaction();
+        } catch (final UnknownComponentException e) {
+            log.error(e.getMessage(), e);
+            throw new TransactionDemarcationException("Could not resolve the Transaction Manager: " + e);
+        } catch (final SystemException e) {
+            log.error(e.getMessage(), e);
+            throw new TransactionDemarcationException("Could not get the current transaction: " + e);
+        }
+    }
+
+    /**
+     * Get the Transaction Manager, resolving it through JNDI on first use
+     * 
+     * @return the Transaction Manager
+     * @throws UnknownComponentException
+     *             if the Transaction Manager cannot be resolved
+     */
+    private TransactionManager getTransactionManager() throws UnknownComponentException {
+        TransactionManager transactionManager = mTransactionManager;
+        if (transactionManager == null) {
+            final JndiComponentResolver transactionManagerResolver = new JndiComponentResolver();
+            transactionManagerResolver.setComponentName(TRANSACTION_MANAGER_NAME);
+            transactionManager = (TransactionManager) transactionManagerResolver.resolveComponent();
+            mTransactionManager = transactionManager;
+        }
+        return transactionManager;
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * @return the number of threads running tasks
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * @return the number of tasks handed to the pool, including those it
+     *         rejected
+     */
+    public long getSubmittedCount() {
+        return mSubmittedCount.get();
+    }
+
+    /**
+     * @return the number of tasks discarded because their transaction rolled
+     *         back
+     */
+    public long getDiscardedCount() {
+        return mDiscardedCount.get();
+    }
+
+    /**
+     * @return the number of tasks the committing thread had to wait for room
+     *         in the queue for - always <code>0</code> without a submit timeout
+     */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    /**
+     * @return the number of tasks discarded because the queue was full
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return the number of tasks that threw an exception
+     */
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AfterCommitExecutor[queueDepth=" + getQueueDepth() + ", active=" + getActiveCount() + ", submitted=" + getSubmittedCount() + ", discarded=" + getDiscardedCount()
+                + ", blocked=" + getBlockedCount() + ", rejected=" + getRejectedCount() + ", failed=" + getFailedCount() + "]";
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.apache.log4j.Logger;
+
+import atg.dtm.TransactionDemarcationException;
+
+/**
+ * A transaction demarcation whose begin is deferred until the work first needs
+ * a transaction.
+ * 
+ * {@link #defer(ATGTransactionDemarcation, TransactionManager)} installs the
+ * demarcation as the deferred transaction of the current thread, without
+ * beginning it. It is begun by {@link #ensureBegun()}, which is called when a
+ * repository or other caller asks a {@link LazyTransactionManager} for the
+ * current transaction, when a nested {@link ATGTransactionDemarcation} that
+ * would join it begins, or explicitly by code about to use some other
+ * transactional resource. If nothing calls it, the demarcation is never begun,
+ * and {@link #end(boolean)} does nothing but uninstall it - so work that never
+ * touches a transactional resource costs no transaction and holds no pooled
+ * connection.
+ * 
+ * It is only begun while it would have been the current transaction had it
+ * been begun up front. While a nested {@link ATGTransactionDemarcation} that
+ * does not join it - <code>REQUIRES_NEW</code>, <code>NOT_SUPPORTED</code> or
+ * <code>NEVER</code> - is in progress, or while the thread has some other
+ * transaction, such as one begun by another caller of the Transaction Manager
+ * itself, {@link #ensureBegun()} leaves it alone, so that work is not moved
+ * into it from the transaction it belongs to. A nested demarcation that
+ * suspends the transaction directly through the Transaction Manager, rather
+ * than through an {@link ATGTransactionDemarcation}, cannot be detected.
+ * 
+ * A {@link Synchronization} can be registered with it before it has begun,
+ * without beginning it. It is registered with the transaction once that
+ * begins. If it never begins, it is told the outcome when
+ * {@link #end(boolean)} is called - committed if the work succeeded, rolled
+ * back if not - or, if it would have joined a transaction already in progress,
+ * it is registered with that instead.
+ * 
+ * This is a stateful object - use a new instance for each demarcation.
+ * 
+ * @author Vihung Marathe
+ */
+public final class DeferredTransaction {
+    /** Logger for DeferredTransaction */
+    private static final Logger log = Logger.getLogger(DeferredTransaction.class);
+
+    /** The deferred transaction of the current thread, if any */
+    private static final ThreadLocal<DeferredTransaction> CURRENT = new ThreadLocal<DeferredTransaction>();
+
+    private final ATGTransactionDemarcation mDemarcation;
+
+    private final TransactionManager mTransactionManager;
+
+    /** The transaction of the thread when it was deferred, if any */
+    private final Transaction mOuterTransaction;
+
+    /** The deferred transaction this one was installed over, if any */
+    private final DeferredTransaction mOuter;
+
+    /** Synchronizations to register with the transaction once it begins */
+    private List<Synchronization> mSynchronizations;
+
+    /** The transaction the Synchronizations were registered with, if any */
+    private Transaction mRegisteredTransaction;
+
+    /** The number of nested demarcations in progress that do not join it */
+    private int mSuspendCount;
+
+    /** Whether the demarcation is being begun, to ignore calls made while it is */
+    private boolean mBeginning;
+
+    private boolean mBegun;
+
+    private boolean mEnded;
+
+    private DeferredTransaction(final ATGTransactionDemarcation pDemarcation, final TransactionManager pTransactionManager, final Transaction pOuterTransaction,
+            final DeferredTransaction pOuter) {
+        super();
+        mDemarcation = pDemarcation;
+        mTransactionManager = pTransactionManager;
+        mOuterTransaction = pOuterTransaction;
+        mOuter = pOuter;
+    }
+
+    /**
+     * Install a demarcation as the deferred transaction of the current thread,
+     * without beginning it. It must be ended with {@link #end(boolean)}, on the
+     * same thread.
+     * 
+     * @param pDemarcation
+     *            the demarcation
+     * @param pTransactionManager
+     *            the Transaction Manager to begin it with
+     * @return the deferred transaction
+     * @throws TransactionDemarcationException
+     *             if the current transaction cannot be found
+     */
+    public static DeferredTransaction defer(final ATGTransactionDemarcation pDemarcation, final TransactionManager pTransactionManager) throws TransactionDemarcationException {
+        // Beginning through the wrapper would only come back here
+        final TransactionManager transactionManager = pTransactionManager instanceof LazyTransactionManager ? ((LazyTransactionManager) pTransactionManager)
+                .getTransactionManager() : pTransactionManager;
+
+        final DeferredTransaction deferred = new DeferredTransaction(pDemarcation, transactionManager, getTransaction(transactionManager), CURRENT.get());
+        CURRENT.set(deferred);
+        return deferred;
+    }
+
+    /**
+     * Begin the deferred transaction of the current thread, if there is one
+     * and it has not begun yet. Call this before using a transactional
+     * resource that does not do so itself.
+     * 
+     * @return <code>true</code> if a deferred transaction was begun by this
+     *         call
+     * @throws TransactionDemarcationException
+     *             if the deferred transaction cannot begin
+     */
+    public static boolean ensureBegun() throws TransactionDemarcationException {
+        final DeferredTransaction deferred = CURRENT.get();
+        return deferred != null && deferred.begin();
+    }
+
+    /**
+     * Get the deferred transaction of the current thread, if there is one that
+     * has not begun yet, and would be begun by {@link #ensureBegun()}
+     * 
+     * @return the deferred transaction, or <code>null</code> if there is none
+     * @throws TransactionDemarcationException
+     *             if the current transaction cannot be found
+     */
+    static DeferredTransaction getPending() throws TransactionDemarcationException {
+        final DeferredTransaction deferred = CURRENT.get();
+        return deferred != null && deferred.isBeginnable() ? deferred : null;
+    }
+
+    /**
+     * Stop the deferred transaction of the current thread, if any, from being
+     * begun until {@link #resume()} is called - while a nested demarcation
+     * that does not join it is in progress.
+     * 
+     * @return the deferred transaction, or <code>null</code> if there is none
+     */
+    static DeferredTransaction suspend() {
+        final DeferredTransaction deferred = CURRENT.get();
+        if (deferred != null) deferred.mSuspendCount++;
+        return deferred;
+    }
+
+    /**
+     * Undo {@link #suspend()}
+     */
+    void resume() {
+        mSuspendCount--;
+    }
+
+    /**
+     * Register a Synchronization with the transaction, without beginning it.
+     * 
+     * @param pSynchronization
+     *            the Synchronization
+     */
+    void registerSynchronization(final Synchronization pSynchronization) {
+        if (mSynchronizations == null) mSynchronizations = new ArrayList<Synchronization>();
+        mSynchronizations.add(pSynchronization);
+    }
+
+    /**
+     * @return whether the demarcation is read-only
+     */
+    boolean isReadOnly() {
+        return mDemarcation.getAttributes().isReadOnly();
+    }
+
+    private boolean isBeginnable() throws TransactionDemarcationException {
+        if (mBegun || mBeginning || mEnded || mSuspendCount > 0) return false;
+
+        // Another transaction has been begun on the thread - the work belongs to that
+        if (getTransaction(mTransactionManager) != mOuterTransaction) {
+            if (log.isDebugEnabled()) log.debug("isBeginnable(): Thread has a different transaction");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean begin() throws TransactionDemarcationException {
+        if (!isBeginnable()) return false;
+
+        if (log.isDebugEnabled()) log.debug("begin(): Beginning deferred transaction");
+        mBeginning = true;
+        try {
+            mDemarcation.begin(mTransactionManager);
+            mBegun = true;
+        } finally {
+            mBeginning = false;
+        }
+
+        // Without a transaction, as with NOT_SUPPORTED, the Synchronizations are told the outcome on end()
+        final Transaction transaction = getTransaction(mTransactionManager);
+        if (mSynchronizations != null && transaction != null) {
+            final List<Synchronization> synchronizations = mSynchronizations;
+            mSynchronizations = null;
+            mRegisteredTransaction = transaction;
+            registerSynchronizations(transaction, synchronizations);
+        }
+        return true;
+    }
+
+    /**
+     * Uninstall the deferred transaction and, if it was begun, end it.
+     * 
+     * @param pSuccess
+     *            whether the work succeeded. If not, the transaction is rolled
+     *            back.
+     * @throws TransactionDemarcationException
+     *             if the demarcation cannot end
+     * @throws TransactionTimeoutException
+     *             if the work succeeded, but exceeded the timeout, and so the
+     *             transaction was rolled back
+     */
+    public void end(final boolean pSuccess) throws TransactionDemarcationException {
+        if (mEnded) return;
+        mEnded = true;
+
+        if (mOuter != null) {
+            CURRENT.set(mOuter);
+        } else {
+            CURRENT.remove();
+        }
+
+        boolean ended = false;
+        try {
+            if (mBegun) {
+                mDemarcation.end(pSuccess);
+            } else {
+                if (log.isDebugEnabled()) log.debug("end(): Deferred transaction never began, skipping");
+                TransactionMetrics.getInstance().incrementSkippedCount();
+            }
+            ended = true;
+        } finally {
+            if (mSynchronizations != null) {
+                final List<Synchronization> synchronizations = mSynchronizations;
+                mSynchronizations = null;
+                if (!mBegun && mOuterTransaction != null && mDemarcation.joinsOuterTransaction()) {
+                    // The work would have been part of the outer transaction, so shares its outcome
+                    mRegisteredTransaction = mOuterTransaction;
+                    registerSynchronizations(mOuterTransaction, synchronizations);
+                } else {
+                    completeSynchronizations(synchronizations, pSuccess && ended);
+                }
+            }
+        }
+    }
+
+    private static void registerSynchronizations(final Transaction pTransaction, final List<Synchronization> pSynchronizations) throws TransactionDemarcationException {
+        for (int i = 0; i < pSynchronizations.size(); i++) {
+            try {
+                pTransaction.registerSynchronization(pSynchronizations.get(i));
+            } catch (RollbackException e) {
+                // The transaction is marked for rollback, so it will not commit
+                completeSynchronizations(pSynchronizations.subList(i, i + 1), false);
+            } catch (SystemException e) {
+                completeSynchronizations(pSynchronizations.subList(i, pSynchronizations.size()), false);
+                throw new TransactionDemarcationException("Could not register with the current transaction: " + e);
+            }
+        }
+    }
+
+    /**
+     * Tell Synchronizations the outcome of work done without a transaction
+     */
+    private static void completeSynchronizations(final List<Synchronization> pSynchronizations, final boolean pSuccess) {
+        for (Synchronization synchronization : pSynchronizations) {
+            try {
+                if (pSuccess) synchronization.beforeCompletion();
+                synchronization.afterCompletion(pSuccess ? Status.STATUS_COMMITTED : Status.STATUS_ROLLEDBACK);
+            } catch (RuntimeException e) {
+                log.error("completeSynchronizations(): Synchronization failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Get the transaction that Synchronizations registered before it began
+     * were registered with, once it has begun or joined the outer transaction -
+     * so that a caller can add to one of them rather than register another,
+     * whose order relative to it the transaction would not guarantee
+     * 
+     * @return the transaction, or <code>null</code> if there is none yet
+     */
+    Transaction getRegisteredTransaction() {
+        return mRegisteredTransaction;
+    }
+
+    /**
+     * @return whether the deferred transaction has begun
+     */
+    public boolean isBegun() {
+        return mBegun;
+    }
+
+    private static Transaction getTransaction(final TransactionManager pTransactionManager) throws TransactionDemarcationException {
+        try {
+            return pTransactionManager.getTransaction();
+        } catch (SystemException e) {
+            throw new TransactionDemarcationException("Could not get the current transaction: " + e);
+        }
+    }
+}
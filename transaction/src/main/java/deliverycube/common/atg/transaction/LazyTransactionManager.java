@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import atg.dtm.TransactionDemarcationException;
+
+/**
+ * {@link TransactionManager} that begins the current thread's
+ * {@link DeferredTransaction}, if any, before any call that asks for or
+ * depends on the current transaction - {@link #getTransaction()},
+ * {@link #getStatus()}, {@link #begin()}, {@link #suspend()} and
+ * {@link #setRollbackOnly()} - so that the caller sees, joins or suspends it
+ * just as if it had been begun up front.
+ * 
+ * Point the <code>transactionManager</code> property of your repositories at
+ * this, so that a repository demarcating its own transaction joins the
+ * deferred one, rather than committing on its own. It can be configured as a
+ * Nucleus component, along the lines of
+ * 
+ * <pre>
+ * $class=deliverycube.common.atg.transaction.LazyTransactionManager
+ * transactionManager=/atg/dynamo/transaction/TransactionManager
+ * </pre>
+ * 
+ * Every other call is passed straight through.
+ * 
+ * @author Vihung Marathe
+ */
+public class LazyTransactionManager implements TransactionManager {
+    /** The Transaction Manager wrapped */
+    private TransactionManager mTransactionManager;
+
+    /**
+     * Default constructor. Delegates to <code>super()</code>.
+     */
+    public LazyTransactionManager() {
+        super();
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param pTransactionManager
+     *            the Transaction Manager to wrap
+     */
+    public LazyTransactionManager(final TransactionManager pTransactionManager) {
+        super();
+        mTransactionManager = pTransactionManager;
+    }
+
+    /**
+     * @see javax.transaction.TransactionManager#begin()
+     */
+    public void begin() throws NotSupportedException, SystemException {
+        beginDeferredTransaction();
+        mTransactionManager.begin();
+    }
+
+    /**
+     * @see javax.transaction.TransactionManager#getTransaction()
+     */
+    public Transaction getTransaction() throws SystemException {
+        beginDeferredTransaction();
+        return mTransactionManager.getTransaction();
+    }
+
+    /**
+     * @see javax.transaction.TransactionManager#getStatus()
+     */
+    public int getStatus() throws SystemException {
+        beginDeferredTransaction();
+        return mTransactionManager.getStatus();
+    }
+
+    /**
+     * @see javax.transaction.TransactionManager#suspend()
+     */
+    public Transaction suspend() throws SystemException {
+        beginDeferredTransaction();
+        return mTransactionManager.suspend();
+    }
+
+    /**
+     * @see javax.transaction.TransactionManager#setRollbackOnly()
+     */
+    public void setRollbackOnly() throws SystemException {
+        beginDeferredTransaction();
+        mTransactionManager.setRollbackOnly();
+    }
+
+    /**
+     * @see javax.transaction.TransactionManager#commit()
+     */
+    public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SystemException {
+        mTransactionManager.commit();
+    }
+
+    /**
+     * @see javax.transaction.TransactionManager#rollback()
+     */
+    public void rollback() throws SystemException {
+        mTransactionManager.rollback();
+    }
+
+    /**
+     * @see javax.transaction.TransactionManager#resume(javax.transaction.Transaction)
+     */
+    public void resume(final Transaction pTransaction) throws InvalidTransactionException, SystemException {
+        mTransactionManager.resume(pTransaction);
+    }
+
+    /**
+     * @see javax.transaction.TransactionManager#setTransactionTimeout(int)
+     */
+    public void setTransactionTimeout(final int pSeconds) throws SystemException {
+        mTransactionManager.setTransactionTimeout(pSeconds);
+    }
+
+    private static void beginDeferredTransaction() throws SystemException {
+        try {
+            DeferredTransaction.ensureBegun();
+        } catch (TransactionDemarcationException e) {
+            final SystemException systemException = new SystemException("Could not begin deferred transaction: " + e.getMessage());
+            systemException.initCause(e);
+            throw systemException;
+        }
+    }
+
+    /**
+     * @return the Transaction Manager wrapped
+     */
+    public TransactionManager getTransactionManager() {
+        return mTransactionManager;
+    }
+
+    /**
+     * @param pTransactionManager
+     *            the Transaction Manager to wrap
+     */
+    public void setTransactionManager(final TransactionManager pTransactionManager) {
+        mTransactionManager = pTransactionManager;
+    }
+}
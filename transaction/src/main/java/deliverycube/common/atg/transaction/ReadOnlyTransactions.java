@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tracks whether the current thread is inside a read-only transaction
+ * demarcation, and detects writes attempted inside one.
+ * 
+ * A read-only transaction is rolled back, rather than committed, when its
+ * demarcation ends, so any writes made inside it are lost. Code that writes -
+ * for example a form handler, or a wrapper around a mutable repository -
+ * should call {@link #checkWrite(String)} before writing, so that such writes
+ * are refused, logged and counted in {@link TransactionMetrics}, rather than
+ * silently lost. Writes are not detected automatically - only those checked
+ * this way are refused.
+ * 
+ * A read-only demarcation that joins a writable transaction does not make it
+ * read-only, as the transaction will still be committed.
+ * 
+ * @author Vihung Marathe
+ */
+public final class ReadOnlyTransactions {
+    /** Logger for ReadOnlyTransactions */
+    private static final Logger log = Logger.getLogger(ReadOnlyTransactions.class);
+
+    /** Whether the current thread is inside a read-only demarcation */
+    private static final ThreadLocal<Boolean> READ_ONLY = new ThreadLocal<Boolean>();
+
+    private ReadOnlyTransactions() {
+        super();
+    }
+
+    /**
+     * @return <code>true</code> if the current thread is inside a read-only
+     *         transaction demarcation
+     */
+    public static boolean isReadOnly() {
+        return READ_ONLY.get() != null;
+    }
+
+    /**
+     * Check that a write is allowed. If the current thread is inside a
+     * read-only transaction demarcation, the attempt is logged, counted and
+     * refused.
+     * 
+     * @param pDescription
+     *            a description of the write, for the log
+     * @throws IllegalStateException
+     *             if the current thread is inside a read-only transaction
+     *             demarcation, which would roll the write back
+     */
+    public static void checkWrite(final String pDescription) {
+        if (!isReadOnly()) return;
+
+        TransactionMetrics.getInstance().incrementReadOnlyWriteCount();
+        log.warn("checkWrite(): Write attempted in a read-only transaction, which would roll it back: " + pDescription);
+        throw new IllegalStateException("Write attempted in a read-only transaction, which would roll it back: " + pDescription);
+    }
+
+    /**
+     * Set whether the current thread is inside a read-only demarcation
+     * 
+     * @param pReadOnly
+     *            the new value
+     */
+    static void setReadOnly(final boolean pReadOnly) {
+        if (pReadOnly) {
+            READ_ONLY.set(Boolean.TRUE);
+        } else {
+            READ_ONLY.remove();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction;
+
+import atg.dtm.TransactionDemarcation;
+import deliverycube.common.atg.transaction.annotation.ATGTransaction;
+import deliverycube.common.atg.transaction.annotation.PropagationLevel;
+
+/**
+ * Immutable, resolved configuration of a transaction demarcation - the
+ * {@link TransactionDemarcation} mode to begin with, the timeout, and whether
+ * the transaction is read-only.
+ * 
+ * Instances are resolved once (per annotated method, or per filter) and then
+ * reused for every demarcation, so that nothing needs to be re-read or
+ * re-computed per call.
+ * 
+ * @author Vihung Marathe
+ */
+public final class TransactionAttributes {
+    /** The attributes used when none are specified */
+    public static final TransactionAttributes DEFAULT = new TransactionAttributes(PropagationLevel.REQUIRED, 0, false);
+
+    private final PropagationLevel mPropagationLevel;
+
+    private final int mDemarcationMode;
+
+    private final int mTimeoutSeconds;
+
+    private final boolean mReadOnly;
+
+    /**
+     * Constructor.
+     * 
+     * @param pPropagationLevel
+     *            the propagation level
+     * @param pTimeoutSeconds
+     *            the timeout of a transaction begun by the demarcation, in
+     *            seconds. Zero, or less, to use the Transaction Manager's
+     *            default.
+     * @param pReadOnly
+     *            whether a transaction begun by the demarcation is read-only,
+     *            and so rolled back rather than committed
+     */
+    public TransactionAttributes(final PropagationLevel pPropagationLevel, final int pTimeoutSeconds, final boolean pReadOnly) {
+        super();
+        mPropagationLevel = pPropagationLevel;
+        mDemarcationMode = toDemarcationMode(pPropagationLevel);
+        mTimeoutSeconds = pTimeoutSeconds;
+        mReadOnly = pReadOnly;
+    }
+
+    /**
+     * Resolve the attributes declared by an {@link ATGTransaction} annotation
+     * 
+     * @param pATGTransaction
+     *            the annotation, may be <code>null</code>
+     * @return the attributes, or {@link #DEFAULT} if there is no annotation
+     */
+    public static TransactionAttributes forAnnotation(final ATGTransaction pATGTransaction) {
+        if (pATGTransaction == null) return DEFAULT;
+        return new TransactionAttributes(pATGTransaction.propagationLevel(), pATGTransaction.timeoutSeconds(), pATGTransaction.readOnly());
+    }
+
+    /**
+     * Convert a {@link PropagationLevel} to the equivalent
+     * {@link TransactionDemarcation} mode
+     * 
+     * @param pPropagationLevel
+     *            the propagation level
+     * @return the {@link TransactionDemarcation} mode
+     */
+    public static int toDemarcationMode(final PropagationLevel pPropagationLevel) {
+        switch (pPropagationLevel) {
+        case REQUIRES_NEW:
+            return TransactionDemarcation.REQUIRES_NEW;
+        case MANDATORY:
+            return TransactionDemarcation.MANDATORY;
+        case NEVER:
+            return TransactionDemarcation.NEVER;
+        case NOT_SUPPORTED:
+            return TransactionDemarcation.NOT_SUPPORTED;
+        case SUPPORTS:
+            return TransactionDemarcation.SUPPORTS;
+        default: // case REQUIRED
+            return TransactionDemarcation.REQUIRED;
+        }
+    }
+
+    /**
+     * @return the propagation level
+     */
+    public PropagationLevel getPropagationLevel() {
+        return mPropagationLevel;
+    }
+
+    /**
+     * @return the {@link TransactionDemarcation} mode equivalent to the
+     *         propagation level
+     */
+    public int getDemarcationMode() {
+        return mDemarcationMode;
+    }
+
+    /**
+     * @return the timeout of a transaction begun by the demarcation, in
+     *         seconds, or zero to use the Transaction Manager's default
+     */
+    public int getTimeoutSeconds() {
+        return mTimeoutSeconds;
+    }
+
+    /**
+     * @return whether a transaction begun by the demarcation is read-only, and
+     *         so rolled back rather than committed
+     */
+    public boolean isReadOnly() {
+        return mReadOnly;
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionAttributes[propagationLevel=" + mPropagationLevel + ", timeoutSeconds=" + mTimeoutSeconds + ", readOnly=" + mReadOnly + "]";
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for transactions demarcated by {@link ATGTransactionDemarcation},
+ * shared by the <code>@ATGTransaction</code> aspect and the transaction
+ * filter.
+ * 
+ * @author Vihung Marathe
+ */
+public final class TransactionMetrics {
+    /** The single instance */
+    private static final TransactionMetrics INSTANCE = new TransactionMetrics();
+
+    /** Count of transactions rolled back because they exceeded their timeout */
+    private final AtomicLong mTimedOutCount = new AtomicLong();
+
+    /** Count of writes attempted inside read-only transactions */
+    private final AtomicLong mReadOnlyWriteCount = new AtomicLong();
+
+    /** Count of deferred transactions that were never needed, and so never begun */
+    private final AtomicLong mSkippedCount = new AtomicLong();
+
+    private TransactionMetrics() {
+        super();
+    }
+
+    /**
+     * @return the single instance
+     */
+    public static TransactionMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the number of transactions rolled back because they exceeded
+     *         their timeout
+     */
+    public long getTimedOutCount() {
+        return mTimedOutCount.get();
+    }
+
+    void incrementTimedOutCount() {
+        mTimedOutCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of writes attempted inside read-only transactions
+     */
+    public long getReadOnlyWriteCount() {
+        return mReadOnlyWriteCount.get();
+    }
+
+    void incrementReadOnlyWriteCount() {
+        mReadOnlyWriteCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of deferred transactions that were never needed, and
+     *         so never begun
+     */
+    public long getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    void incrementSkippedCount() {
+        mSkippedCount.incrementAndGet();
+    }
+
+    /**
+     * Reset all counters to zero
+     */
+    public void reset() {
+        mTimedOutCount.set(0);
+        mReadOnlyWriteCount.set(0);
+        mSkippedCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionMetrics[timedOut=" + getTimedOutCount() + ", readOnlyWrites=" + getReadOnlyWriteCount() + ", skipped=" + getSkippedCount() + "]";
+    }
+}
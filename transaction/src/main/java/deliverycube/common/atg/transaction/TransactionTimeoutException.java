@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction;
+
+/**
+ * Thrown when work completes successfully, but after the timeout of its
+ * transaction, and so the transaction has been rolled back.
+ * 
+ * @author Vihung Marathe
+ */
+public class TransactionTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TransactionTimeoutException(final String pMessage) {
+        super(pMessage);
+    }
+
+}
@@ -20,7 +20,8 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
-// Make sure aspectjweaver-1.6.11.jar is provided with javaagent 
+// Either weave ATGTransactionAspect at compile time (build with -Pcompile-time-weaving, see README.md),
+// or make sure aspectjweaver-1.6.11.jar is provided with javaagent
 
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
@@ -28,4 +29,19 @@ public @interface ATGTransaction {
 
     PropagationLevel propagationLevel() default PropagationLevel.REQUIRED;
 
+    /**
+     * The timeout of a transaction begun for the method, in seconds. If the
+     * method takes longer, the transaction is rolled back. Zero to use the
+     * Transaction Manager's default.
+     */
+    int timeoutSeconds() default 0;
+
+    /**
+     * Whether the method only reads. A transaction begun for a read-only
+     * method is rolled back rather than committed, which avoids the cost of
+     * committing. Writes attempted inside it are refused by
+     * <code>ReadOnlyTransactions.checkWrite()</code>.
+     */
+    boolean readOnly() default false;
+
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction.annotation;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.TransactionManager;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.annotation.Pointcut;
+import org.aspectj.lang.reflect.MethodSignature;
+
+import deliverycube.common.atg.componentresolver.UnknownComponentException;
+import deliverycube.common.atg.componentresolver.jndi.JndiComponentResolver;
+import deliverycube.common.atg.transaction.ATGTransactionDemarcation;
+import deliverycube.common.atg.transaction.TransactionAttributes;
+
+/**
+ * Aspect for wrapping an ATG transaction around a method call, restricted to
+ * the types matched by the abstract {@link #transactionScope()} pointcut.
+ * 
+ * Concrete sub-aspects define the scope, typically as a package restriction
+ * such as <code>within(com.mycompany..*)</code>, either in code or as a
+ * <code>concrete-aspect</code> in <code>META-INF/aop.xml</code> (see
+ * <code>META-INF/aop.xml.template</code>). {@link ATGTransactionAspect} applies
+ * to all types.
+ * 
+ * The {@link ATGTransaction} annotation is read once per advised method; the
+ * resolved {@link TransactionAttributes} are cached thereafter.
+ * 
+ * @author Akash Motwani
+ */
+@Aspect
+public abstract class AbstractATGTransactionAspect {
+    /** The Nucleus name of the Transaction Manager */
+    private static final String TRANSACTION_MANAGER_NAME = "/atg/dynamo/transaction/TransactionManager";
+
+    /** The local cache of (advised method --&gt; resolved attributes) */
+    private final ConcurrentMap<Method, TransactionAttributes> mAttributesCache = new ConcurrentHashMap<Method, TransactionAttributes>();
+
+    /** The resolved Transaction Manager, looked up on first use */
+    private volatile TransactionManager mTransactionManager;
+
+    /**
+     * The types within which annotated methods are advised
+     */
+    @Pointcut
+    protected abstract void transactionScope();
+
+    @Pointcut("execution(@deliverycube.common.atg.transaction.annotation.ATGTransaction public * *(..)) && transactionScope()")
+    protected void transactionalMethod() {
+        // No code needed here, just empty method
+    }
+
+    @Around("transactionalMethod()")
+    public Object doStartTransaction(final ProceedingJoinPoint pJoinPoint) throws Throwable {
+        final TransactionAttributes attributes = getTransactionAttributes(((MethodSignature) pJoinPoint.getSignature()).getMethod());
+
+        // Assume the method invocation fails
+        boolean success = false;
+
+        // the object to return.
+        Object result = null;
+
+        final ATGTransactionDemarcation td = new ATGTransactionDemarcation(attributes);
+
+        try {
+            // Begin a transaction with the selected propagation level and timeout
+            td.begin(getTransactionManager());
+
+            // Invoke the wrapped method
+            result = pJoinPoint.proceed();
+
+            success = true;
+        } finally {
+            td.end(success);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the resolved attributes for an advised method, reading its
+     * {@link ATGTransaction} annotation on first use
+     * 
+     * @param pMethod
+     *            the advised method
+     * @return the resolved attributes
+     */
+    private TransactionAttributes getTransactionAttributes(final Method pMethod) {
+        TransactionAttributes attributes = mAttributesCache.get(pMethod);
+        if (attributes == null) {
+            attributes = TransactionAttributes.forAnnotation(pMethod.getAnnotation(ATGTransaction.class));
+            mAttributesCache.putIfAbsent(pMethod, attributes);
+        }
+        return attributes;
+    }
+
+    /**
+     * Get the Transaction Manager, resolving it through JNDI on first use
+     * 
+     * @return the Transaction Manager
+     * @throws UnknownComponentException
+     *             if the Transaction Manager cannot be resolved
+     */
+    private TransactionManager getTransactionManager() throws UnknownComponentException {
+        TransactionManager transactionManager = mTransactionManager;
+        if (transactionManager == null) {
+            final JndiComponentResolver transactionManagerResolver = new JndiComponentResolver();
+            transactionManagerResolver.setComponentName(TRANSACTION_MANAGER_NAME);
+            transactionManager = (TransactionManager) transactionManagerResolver.resolveComponent();
+            mTransactionManager = transactionManager;
+        }
+        return transactionManager;
+    }
+}
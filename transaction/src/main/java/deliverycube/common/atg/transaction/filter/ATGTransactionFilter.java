@@ -16,8 +16,10 @@
 package deliverycube.common.atg.transaction.filter;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.servlet.Filter;
@@ -32,15 +34,34 @@ import javax.transaction.TransactionManager;
 
 import org.apache.log4j.Logger;
 
-import atg.dtm.TransactionDemarcation;
 import atg.dtm.TransactionDemarcationException;
 import deliverycube.common.atg.componentresolver.UnknownComponentException;
 import deliverycube.common.atg.componentresolver.jndi.JndiComponentResolver;
+import deliverycube.common.atg.transaction.ATGTransactionDemarcation;
+import deliverycube.common.atg.transaction.DeferredTransaction;
+import deliverycube.common.atg.transaction.TransactionAttributes;
+import deliverycube.common.atg.transaction.TransactionTimeoutException;
 import deliverycube.common.atg.transaction.annotation.PropagationLevel;
 
 /**
  * Servlet Filter for wrapping every HTTP Request with an ATG Transaction.
  * 
+ * Init parameters are
+ * <ul>
+ * <li><code>propagationLevel</code> - the {@link PropagationLevel} to use</li>
+ * <li><code>timeout</code> - optional, the timeout of the transaction in
+ * seconds. If the request takes longer, the transaction is rolled back.</li>
+ * <li><code>readOnlyPaths</code> - optional, a comma-separated list of path
+ * prefixes, relative to the context path, of requests that only read. Their
+ * transactions are rolled back rather than committed.</li>
+ * <li><code>lazy</code> - optional, <code>true</code> to defer beginning the
+ * transaction until the request first needs it - see
+ * {@link DeferredTransaction}. A request that never touches a transactional
+ * resource skips the transaction entirely. Repositories must use a
+ * {@link deliverycube.common.atg.transaction.LazyTransactionManager} for their
+ * work to join the request's transaction.</li>
+ * </ul>
+ * 
  * @author Vihung Marathe
  * 
  */
@@ -51,7 +72,13 @@ public class ATGTransactionFilter implements Filter {
     /** Logger for ATGTransactionFilter */
     private static final Logger log = Logger.getLogger(ATGTransactionFilter.class);
 
-    private int mPropagationLevel;
+    private TransactionAttributes mTransactionAttributes;
+
+    private TransactionAttributes mReadOnlyTransactionAttributes;
+
+    private String[] mReadOnlyPaths;
+
+    private boolean mLazy;
 
     private JndiComponentResolver mTransactionManagerResolver;
 
@@ -89,14 +116,20 @@ public class ATGTransactionFilter implements Filter {
             // assume failure
             boolean success = false;
 
-            TransactionDemarcation td = new TransactionDemarcation();
+            ATGTransactionDemarcation td = new ATGTransactionDemarcation(isReadOnly(request) ? mReadOnlyTransactionAttributes : mTransactionAttributes);
+            DeferredTransaction deferred = null;
 
             try {
                 // Resolve the Transaction Manager component
                 TransactionManager transactionManager = (TransactionManager) mTransactionManagerResolver.resolveComponent();
 
-                // Begin a transaction with the selected propagation level
-                td.begin(transactionManager, mPropagationLevel);
+                if (mLazy) {
+                    // Begin a transaction when the request first needs one
+                    deferred = DeferredTransaction.defer(td, transactionManager);
+                } else {
+                    // Begin a transaction with the selected propagation level and timeout
+                    td.begin(transactionManager);
+                }
 
                 // Wrap the response with so as to be able to extract the status code
                 StatusResponseWrapper response = new StatusResponseWrapper((HttpServletResponse) pResponse);
@@ -126,7 +159,16 @@ public class ATGTransactionFilter implements Filter {
             } finally {
                 try {
                     if (log.isDebugEnabled()) log.debug("doFilter(): Ending transaction with success=" + success);
-                    td.end(!success);
+                    if (deferred != null) {
+                        deferred.end(success);
+                    } else {
+                        td.end(success);
+                    }
+                } catch (TransactionTimeoutException e) {
+                    // The transaction has been rolled back - fail the request, as the aspect fails the method, so that
+                    // the container sends an error if the response has not been committed yet
+                    log.error(e.getMessage(), e);
+                    throw new ServletException(e.getMessage(), e);
                 } catch (TransactionDemarcationException e) {
                     throw new ServletException(e.getMessage(), e);
                 }
@@ -134,6 +176,24 @@ public class ATGTransactionFilter implements Filter {
         }
     }
 
+    /**
+     * Determine whether the request is on a read-only path
+     * 
+     * @param pRequest
+     *            the request
+     * @return <code>true</code> if the request path starts with one of the
+     *         configured read-only paths
+     */
+    private boolean isReadOnly(final HttpServletRequest pRequest) {
+        if (mReadOnlyPaths.length == 0) return false;
+
+        final String path = pRequest.getRequestURI().substring(pRequest.getContextPath().length());
+        for (String readOnlyPath : mReadOnlyPaths) {
+            if (path.startsWith(readOnlyPath)) return true;
+        }
+        return false;
+    }
+
     /**
      * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
      */
@@ -145,27 +205,37 @@ public class ATGTransactionFilter implements Filter {
 
         PropagationLevel propagationLevel = PropagationLevel.valueOf(progatationLevelParam);
 
-        switch (propagationLevel) {
-        case REQUIRES_NEW:
-            mPropagationLevel = TransactionDemarcation.REQUIRES_NEW;
-            break;
-        case MANDATORY:
-            mPropagationLevel = TransactionDemarcation.MANDATORY;
-            break;
-        case NEVER:
-            mPropagationLevel = TransactionDemarcation.NEVER;
-            break;
-        case NOT_SUPPORTED:
-            mPropagationLevel = TransactionDemarcation.NOT_SUPPORTED;
-            break;
-        case SUPPORTS:
-            mPropagationLevel = TransactionDemarcation.SUPPORTS;
-            break;
-        default: // case REQUIRED
-            mPropagationLevel = TransactionDemarcation.REQUIRED;
-            break;
+        String timeoutParam = pFilterConfig.getInitParameter("timeout");
+        if (log.isDebugEnabled()) log.debug("init(): timeoutParam=" + timeoutParam);
+
+        int timeout = 0;
+        if (timeoutParam != null && timeoutParam.trim().length() > 0) {
+            try {
+                timeout = Integer.parseInt(timeoutParam.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid timeout: " + timeoutParam, e);
+            }
         }
 
+        String readOnlyPathsParam = pFilterConfig.getInitParameter("readOnlyPaths");
+        if (log.isDebugEnabled()) log.debug("init(): readOnlyPathsParam=" + readOnlyPathsParam);
+
+        List<String> readOnlyPaths = new ArrayList<String>();
+        if (readOnlyPathsParam != null) {
+            for (String readOnlyPath : readOnlyPathsParam.split(",")) {
+                if (readOnlyPath.trim().length() > 0) readOnlyPaths.add(readOnlyPath.trim());
+            }
+        }
+        mReadOnlyPaths = readOnlyPaths.toArray(new String[readOnlyPaths.size()]);
+
+        String lazyParam = pFilterConfig.getInitParameter("lazy");
+        if (log.isDebugEnabled()) log.debug("init(): lazyParam=" + lazyParam);
+
+        mLazy = lazyParam != null && Boolean.parseBoolean(lazyParam.trim());
+
+        mTransactionAttributes = new TransactionAttributes(propagationLevel, timeout, false);
+        mReadOnlyTransactionAttributes = new TransactionAttributes(propagationLevel, timeout, true);
+
         mTransactionManagerResolver = new JndiComponentResolver();
         mTransactionManagerResolver.setComponentName("/atg/dynamo/transaction/TransactionManager");
     }
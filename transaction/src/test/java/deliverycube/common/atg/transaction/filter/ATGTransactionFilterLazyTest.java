@@ -0,0 +1,496 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.spi.InitialContextFactory;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import atg.dtm.TransactionDemarcation;
+import atg.dtm.TransactionDemarcationException;
+import deliverycube.common.atg.transaction.ATGTransactionDemarcation;
+import deliverycube.common.atg.transaction.AfterCommitExecutor;
+import deliverycube.common.atg.transaction.LazyTransactionManager;
+import deliverycube.common.atg.transaction.ReadOnlyTransactions;
+import deliverycube.common.atg.transaction.TransactionAttributes;
+import deliverycube.common.atg.transaction.TransactionMetrics;
+import deliverycube.common.atg.transaction.TransactionTimeoutException;
+import deliverycube.common.atg.transaction.annotation.PropagationLevel;
+
+/**
+ * Tests for {@link ATGTransactionFilter} with the <code>lazy</code> init
+ * parameter, and repositories using a {@link LazyTransactionManager}
+ * 
+ * @author Vihung Marathe
+ */
+public class ATGTransactionFilterLazyTest {
+    /** The Transaction Manager that {@link ContextFactory} resolves */
+    private static TransactionManager sTransactionManager;
+
+    private RecordingTransactionManager mTransactionManager;
+
+    private LazyTransactionManager mLazyTransactionManager;
+
+    private ATGTransactionFilter mFilter;
+
+    private String mInitialContextFactory;
+
+    @Before
+    public void setUp() throws ServletException {
+        mTransactionManager = new RecordingTransactionManager();
+        mLazyTransactionManager = new LazyTransactionManager(mTransactionManager);
+        sTransactionManager = mTransactionManager;
+        mInitialContextFactory = System.setProperty(Context.INITIAL_CONTEXT_FACTORY, ContextFactory.class.getName());
+        TransactionMetrics.getInstance().reset();
+        initFilter();
+    }
+
+    /**
+     * Initialise the filter, lazy and <code>REQUIRED</code>, with any other
+     * init parameters given
+     * 
+     * @param pInitParameters
+     *            pairs of init parameter names and values
+     */
+    private void initFilter(final String... pInitParameters) throws ServletException {
+        final Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put("propagationLevel", "REQUIRED");
+        initParameters.put("lazy", "true");
+        for (int i = 0; i < pInitParameters.length; i += 2) {
+            initParameters.put(pInitParameters[i], pInitParameters[i + 1]);
+        }
+        mFilter = new ATGTransactionFilter();
+        mFilter.init(proxy(FilterConfig.class, initParameters));
+    }
+
+    @After
+    public void tearDown() {
+        sTransactionManager = null;
+        if (mInitialContextFactory != null) {
+            System.setProperty(Context.INITIAL_CONTEXT_FACTORY, mInitialContextFactory);
+        } else {
+            System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+        }
+    }
+
+    @Test
+    public void repositoryWritesRollBackTogetherOnServerError() throws Exception {
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                write("order");
+                write("payment");
+                ((HttpServletResponse) pResponse).setStatus(500);
+            }
+        });
+
+        assertEquals(Collections.emptyList(), mTransactionManager.getCommitted());
+        assertEquals(Arrays.asList("order", "payment"), mTransactionManager.getRolledBack());
+        assertEquals(1, mTransactionManager.getBegunCount());
+    }
+
+    @Test
+    public void repositoryWritesCommitTogetherOnSuccess() throws Exception {
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                write("order");
+                write("payment");
+                ((HttpServletResponse) pResponse).setStatus(200);
+            }
+        });
+
+        assertEquals(Arrays.asList("order", "payment"), mTransactionManager.getCommitted());
+        assertEquals(1, mTransactionManager.getBegunCount());
+    }
+
+    @Test
+    public void requestWithoutRepositoryAccessSkipsTransaction() throws Exception {
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                ((HttpServletResponse) pResponse).setStatus(400);
+            }
+        });
+
+        assertEquals(0, mTransactionManager.getBegunCount());
+        assertEquals(1L, TransactionMetrics.getInstance().getSkippedCount());
+    }
+
+    @Test
+    public void writeInNestedRequiresNewStaysInItsOwnTransaction() throws Exception {
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                inDemarcation(PropagationLevel.REQUIRES_NEW, "audit");
+                write("order");
+                ((HttpServletResponse) pResponse).setStatus(500);
+            }
+        });
+
+        assertEquals(Arrays.asList("audit"), mTransactionManager.getCommitted());
+        assertEquals(Arrays.asList("order"), mTransactionManager.getRolledBack());
+    }
+
+    @Test
+    public void writeInNestedNotSupportedDoesNotBeginRequestTransaction() throws Exception {
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                inDemarcation(PropagationLevel.NOT_SUPPORTED, "log");
+                ((HttpServletResponse) pResponse).setStatus(500);
+            }
+        });
+
+        // The repository committed its own transaction, as it would had the request's been begun and suspended
+        assertEquals(Arrays.asList("log"), mTransactionManager.getCommitted());
+        assertEquals(1, mTransactionManager.getBegunCount());
+        assertEquals(1L, TransactionMetrics.getInstance().getSkippedCount());
+    }
+
+    @Test
+    public void requestExceedingTimeoutIsRolledBackAndFails() throws Exception {
+        initFilter("timeout", "1");
+
+        try {
+            doFilter(new FilterChain() {
+                public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                    write("order");
+                    sleep(1100);
+                    ((HttpServletResponse) pResponse).setStatus(200);
+                }
+            });
+            fail("Expected a ServletException");
+        } catch (ServletException e) {
+            assertTrue(e.getCause() instanceof TransactionTimeoutException);
+        }
+
+        assertEquals(Collections.emptyList(), mTransactionManager.getCommitted());
+        assertEquals(Arrays.asList("order"), mTransactionManager.getRolledBack());
+        assertEquals(1L, TransactionMetrics.getInstance().getTimedOutCount());
+    }
+
+    @Test
+    public void requestWithinTimeoutCommits() throws Exception {
+        initFilter("timeout", "1");
+
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                write("order");
+                ((HttpServletResponse) pResponse).setStatus(200);
+            }
+        });
+
+        assertEquals(Arrays.asList("order"), mTransactionManager.getCommitted());
+        assertEquals(0L, TransactionMetrics.getInstance().getTimedOutCount());
+    }
+
+    @Test
+    public void readOnlyDemarcationRollsBackWhatItBegan() throws Exception {
+        final ATGTransactionDemarcation td = new ATGTransactionDemarcation(new TransactionAttributes(PropagationLevel.REQUIRED, 0, true));
+        td.begin(mTransactionManager);
+        mTransactionManager.write("query");
+        td.end(true);
+
+        assertEquals(Collections.emptyList(), mTransactionManager.getCommitted());
+        assertEquals(Arrays.asList("query"), mTransactionManager.getRolledBack());
+    }
+
+    @Test
+    public void checkWriteThrowsInsideReadOnlyDemarcationOnly() throws Exception {
+        final ATGTransactionDemarcation td = new ATGTransactionDemarcation(new TransactionAttributes(PropagationLevel.REQUIRED, 0, true));
+        td.begin(mTransactionManager);
+        try {
+            ReadOnlyTransactions.checkWrite("order");
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals(1L, TransactionMetrics.getInstance().getReadOnlyWriteCount());
+        } finally {
+            td.end(true);
+        }
+
+        assertFalse(ReadOnlyTransactions.isReadOnly());
+        ReadOnlyTransactions.checkWrite("order");
+        assertEquals(1L, TransactionMetrics.getInstance().getReadOnlyWriteCount());
+    }
+
+    @Test
+    public void postToReadOnlyPathIsRolledBack() throws Exception {
+        initFilter("readOnlyPaths", "/search");
+        final FilterChain chain = new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                write(((HttpServletRequest) pRequest).getRequestURI());
+                ((HttpServletResponse) pResponse).setStatus(200);
+            }
+        };
+
+        doFilter("/store/search/products", chain);
+        doFilter("/store/orders", chain);
+
+        assertEquals(Arrays.asList("/store/orders"), mTransactionManager.getCommitted());
+        assertEquals(Arrays.asList("/store/search/products"), mTransactionManager.getRolledBack());
+    }
+
+    @Test
+    public void afterCommitTaskDoesNotBeginTransaction() throws Exception {
+        final AfterCommitExecutor executor = new AfterCommitExecutor(1, 10);
+        final AtomicInteger runCount = new AtomicInteger();
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                execute(executor, runCount);
+                ((HttpServletResponse) pResponse).setStatus(200);
+            }
+        });
+
+        assertTrue(executor.shutdown(1000));
+        assertEquals(0, mTransactionManager.getBegunCount());
+        assertEquals(1, runCount.get());
+    }
+
+    @Test
+    public void afterCommitTaskIsDiscardedWhenRequestFails() throws Exception {
+        final AfterCommitExecutor executor = new AfterCommitExecutor(1, 10);
+        final AtomicInteger runCount = new AtomicInteger();
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                execute(executor, runCount);
+                write("order");
+                ((HttpServletResponse) pResponse).setStatus(500);
+            }
+        });
+
+        assertTrue(executor.shutdown(1000));
+        assertEquals(Arrays.asList("order"), mTransactionManager.getRolledBack());
+        assertEquals(0, runCount.get());
+        assertEquals(1L, executor.getDiscardedCount());
+    }
+
+    @Test
+    public void afterCommitTaskRunsOnceRequestTransactionCommits() throws Exception {
+        final AfterCommitExecutor executor = new AfterCommitExecutor(1, 10);
+        final AtomicInteger runCount = new AtomicInteger();
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                execute(executor, runCount);
+                write("order");
+                execute(executor, runCount);
+                ((HttpServletResponse) pResponse).setStatus(200);
+            }
+        });
+
+        assertTrue(executor.shutdown(1000));
+        assertEquals(Arrays.asList("order"), mTransactionManager.getCommitted());
+        assertEquals(2, runCount.get());
+    }
+
+    @Test
+    public void afterCommitTasksQueuedBeforeAndAfterTransactionBeginsRunInOrder() throws Exception {
+        final AfterCommitExecutor executor = new AfterCommitExecutor(1, 10);
+        final List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                execute(executor, record(runOrder, "before"));
+                write("order");
+                execute(executor, record(runOrder, "after"));
+                ((HttpServletResponse) pResponse).setStatus(200);
+            }
+        });
+
+        assertTrue(executor.shutdown(1000));
+        assertEquals(Arrays.asList("order"), mTransactionManager.getCommitted());
+        assertEquals(Arrays.asList("before", "after"), runOrder);
+    }
+
+    @Test
+    public void afterCommitTaskIsDiscardedWithoutWaitingWhenQueueIsFull() throws Exception {
+        final AfterCommitExecutor executor = new AfterCommitExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runCount = new AtomicInteger();
+        doFilter(new FilterChain() {
+            public void doFilter(final ServletRequest pRequest, final ServletResponse pResponse) throws IOException, ServletException {
+                // Occupies the only thread, while the next task fills the queue
+                execute(executor, new Runnable() {
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                execute(executor, runCount);
+                execute(executor, runCount);
+                write("order");
+                ((HttpServletResponse) pResponse).setStatus(200);
+            }
+        });
+        release.countDown();
+
+        assertTrue(executor.shutdown(1000));
+        assertEquals(Arrays.asList("order"), mTransactionManager.getCommitted());
+        assertEquals(1, runCount.get());
+        assertEquals(1L, executor.getRejectedCount());
+        assertEquals(0L, executor.getBlockedCount());
+    }
+
+    private static void execute(final AfterCommitExecutor pExecutor, final AtomicInteger pRunCount) throws ServletException {
+        execute(pExecutor, new Runnable() {
+            public void run() {
+                pRunCount.incrementAndGet();
+            }
+        });
+    }
+
+    private static void execute(final AfterCommitExecutor pExecutor, final Runnable pTask) throws ServletException {
+        try {
+            pExecutor.execute(pTask);
+        } catch (TransactionDemarcationException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    private static Runnable record(final List<String> pRunOrder, final String pName) {
+        return new Runnable() {
+            public void run() {
+                pRunOrder.add(pName);
+            }
+        };
+    }
+
+    /**
+     * Stand-in for a slow downstream call
+     */
+    private static void sleep(final long pMillis) throws ServletException {
+        try {
+            Thread.sleep(pMillis);
+        } catch (InterruptedException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    private void doFilter(final FilterChain pFilterChain) throws IOException, ServletException {
+        doFilter("/store/orders", pFilterChain);
+    }
+
+    private void doFilter(final String pRequestURI, final FilterChain pFilterChain) throws IOException, ServletException {
+        final Map<String, String> request = new HashMap<String, String>();
+        request.put("getMethod", "POST");
+        request.put("getRequestURI", pRequestURI);
+        request.put("getContextPath", "/store");
+        mFilter.doFilter(proxy(HttpServletRequest.class, request), proxy(HttpServletResponse.class, Collections.<String, String> emptyMap()), pFilterChain);
+    }
+
+    /**
+     * Write an item the way a repository does - in its own REQUIRED
+     * demarcation, through the Transaction Manager it is configured with
+     */
+    private void write(final String pItem) throws ServletException {
+        final TransactionDemarcation td = new TransactionDemarcation();
+        try {
+            td.begin(mLazyTransactionManager, TransactionDemarcation.REQUIRED);
+            try {
+                mTransactionManager.write(pItem);
+            } finally {
+                td.end();
+            }
+        } catch (TransactionDemarcationException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    /**
+     * Write an item inside a demarcation, as an <code>@ATGTransaction</code>
+     * method does
+     */
+    private void inDemarcation(final PropagationLevel pPropagationLevel, final String pItem) throws ServletException {
+        final ATGTransactionDemarcation td = new ATGTransactionDemarcation(new TransactionAttributes(pPropagationLevel, 0, false));
+        try {
+            td.begin(mTransactionManager);
+            try {
+                write(pItem);
+            } finally {
+                td.end(true);
+            }
+        } catch (TransactionDemarcationException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    /**
+     * Stand-in for an interface, whose methods return the given values by
+     * method name, or the default for their return type
+     */
+    private static <T> T proxy(final Class<T> pInterface, final Map<String, String> pValues) {
+        return pInterface.cast(Proxy.newProxyInstance(pInterface.getClassLoader(), new Class<?>[] { pInterface }, new InvocationHandler() {
+            public Object invoke(final Object pProxy, final Method pMethod, final Object[] pArguments) {
+                if ("getInitParameter".equals(pMethod.getName())) return pValues.get(pArguments[0]);
+                if (pValues.containsKey(pMethod.getName())) return pValues.get(pMethod.getName());
+                final Class<?> type = pMethod.getReturnType();
+                if (type == boolean.class) return Boolean.FALSE;
+                if (type == int.class) return Integer.valueOf(0);
+                if (type == long.class) return Long.valueOf(0L);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * JNDI provider resolving the Transaction Manager under test
+     */
+    public static class ContextFactory implements InitialContextFactory {
+        public Context getInitialContext(final Hashtable<?, ?> pEnvironment) {
+            return proxy(Context.class, Collections.<String, String> emptyMap(), sTransactionManager);
+        }
+
+        private static Context proxy(final Class<Context> pInterface, final Map<String, String> pValues, final TransactionManager pTransactionManager) {
+            return pInterface.cast(Proxy.newProxyInstance(pInterface.getClassLoader(), new Class<?>[] { pInterface }, new InvocationHandler() {
+                public Object invoke(final Object pProxy, final Method pMethod, final Object[] pArguments) throws NameNotFoundException {
+                    if ("lookup".equals(pMethod.getName())) {
+                        if ("dynamo:/atg/dynamo/transaction/TransactionManager".equals(String.valueOf(pArguments[0]))) return pTransactionManager;
+                        throw new NameNotFoundException(String.valueOf(pArguments[0]));
+                    }
+                    return null;
+                }
+            }));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012 Delivery Cube
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package deliverycube.common.atg.transaction.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+
+/**
+ * In-memory {@link TransactionManager} for a single thread, recording the
+ * writes committed and rolled back by its transactions.
+ * 
+ * @author Vihung Marathe
+ */
+final class RecordingTransactionManager implements TransactionManager {
+    /** The transaction associated with the thread */
+    private final ThreadLocal<RecordingTransaction> mCurrent = new ThreadLocal<RecordingTransaction>();
+
+    private final List<String> mCommitted = new ArrayList<String>();
+
+    private final List<String> mRolledBack = new ArrayList<String>();
+
+    private int mBegunCount;
+
+    /**
+     * Record a write in the current transaction
+     * 
+     * @param pItem
+     *            the item written
+     */
+    void write(final String pItem) {
+        getRequiredTransaction().mWrites.add(pItem);
+    }
+
+    /**
+     * @return the items written by committed transactions
+     */
+    List<String> getCommitted() {
+        return mCommitted;
+    }
+
+    /**
+     * @return the items written by rolled back transactions
+     */
+    List<String> getRolledBack() {
+        return mRolledBack;
+    }
+
+    /**
+     * @return the number of transactions begun
+     */
+    int getBegunCount() {
+        return mBegunCount;
+    }
+
+    public void begin() throws NotSupportedException {
+        if (mCurrent.get() != null) throw new NotSupportedException("Nested transactions are not supported");
+        mCurrent.set(new RecordingTransaction());
+        mBegunCount++;
+    }
+
+    public void commit() throws RollbackException, SystemException {
+        getRequiredTransaction().commit();
+    }
+
+    public void rollback() throws SystemException {
+        getRequiredTransaction().rollback();
+    }
+
+    public void setRollbackOnly() {
+        getRequiredTransaction().setRollbackOnly();
+    }
+
+    public int getStatus() {
+        final RecordingTransaction transaction = mCurrent.get();
+        return transaction == null ? Status.STATUS_NO_TRANSACTION : transaction.getStatus();
+    }
+
+    public Transaction getTransaction() {
+        return mCurrent.get();
+    }
+
+    public Transaction suspend() {
+        final RecordingTransaction transaction = mCurrent.get();
+        mCurrent.remove();
+        return transaction;
+    }
+
+    public void resume(final Transaction pTransaction) throws InvalidTransactionException {
+        if (mCurrent.get() != null) throw new IllegalStateException("Thread already has a transaction");
+        if (pTransaction == null) return;
+        if (!(pTransaction instanceof RecordingTransaction)) throw new InvalidTransactionException("Not a RecordingTransaction: " + pTransaction);
+        mCurrent.set((RecordingTransaction) pTransaction);
+    }
+
+    public void setTransactionTimeout(final int pSeconds) {
+        // Not enforced
+    }
+
+    private RecordingTransaction getRequiredTransaction() {
+        final RecordingTransaction transaction = mCurrent.get();
+        if (transaction == null) throw new IllegalStateException("No transaction");
+        return transaction;
+    }
+
+    /**
+     * A transaction holding the writes made in it until it completes
+     */
+    private final class RecordingTransaction implements Transaction {
+        private final List<String> mWrites = new ArrayList<String>();
+
+        private final List<Synchronization> mSynchronizations = new ArrayList<Synchronization>();
+
+        private int mStatus = Status.STATUS_ACTIVE;
+
+        public void commit() throws RollbackException {
+            for (Synchronization synchronization : mSynchronizations) {
+                synchronization.beforeCompletion();
+            }
+            if (mStatus == Status.STATUS_MARKED_ROLLBACK) {
+                rollback();
+                throw new RollbackException("Transaction was marked for rollback");
+            }
+            mCommitted.addAll(mWrites);
+            complete(Status.STATUS_COMMITTED);
+        }
+
+        public void rollback() {
+            mRolledBack.addAll(mWrites);
+            complete(Status.STATUS_ROLLEDBACK);
+        }
+
+        private void complete(final int pStatus) {
+            mStatus = pStatus;
+            if (mCurrent.get() == this) mCurrent.remove();
+            // Last registered first - JTA does not guarantee the order, so nothing may rely on it
+            for (int i = mSynchronizations.size() - 1; i >= 0; i--) {
+                mSynchronizations.get(i).afterCompletion(pStatus);
+            }
+        }
+
+        public void setRollbackOnly() {
+            mStatus = Status.STATUS_MARKED_ROLLBACK;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        public void registerSynchronization(final Synchronization pSynchronization) throws RollbackException {
+            if (mStatus == Status.STATUS_MARKED_ROLLBACK) throw new RollbackException("Transaction is marked for rollback");
+            mSynchronizations.add(pSynchronization);
+        }
+
+        public boolean enlistResource(final XAResource pResource) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean delistResource(final XAResource pResource, final int pFlags) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}